@@ -0,0 +1,18 @@
+package com.theonelab.navi.gypsum;
+
+import android.util.Log;
+
+/**
+ * Sends {@link GypsumLog} messages to logcat. Created by name from
+ * {@link GypsumLog}, so keep the no-argument constructor.
+ */
+final class AndroidLogSink implements GypsumLog.Sink {
+  @Override
+  public void println(int priority, String tag, String message) {
+    if (priority == GypsumLog.ASSERT) {
+      Log.wtf(tag, message);
+    } else {
+      Log.println(priority, tag, message);
+    }
+  }
+}
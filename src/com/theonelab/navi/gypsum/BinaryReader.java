@@ -0,0 +1,348 @@
+package com.theonelab.navi.gypsum;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Decodes commands in Gypsum's binary encoding straight out of an
+ * {@link InputStream} and into a {@link ParamTable}.
+ *
+ * Each frame is laid out as follows, where varints are unsigned LEB128 and
+ * floats are little-endian IEEE 754 singles:
+ *
+ * <pre>
+ * frame   := opcode:varint [ count:varint param* ]
+ * param   := key:varint type:u8 value
+ * value   := ()                          ; BINARY_NIL, BINARY_T
+ *          | float                       ; BINARY_NUMBER
+ *          | float float                 ; BINARY_COORDINATE
+ *          | length:varint utf8-bytes    ; BINARY_STRING, BINARY_SYMBOL
+ *          | argb:u32                    ; BINARY_COLOR
+ * </pre>
+ *
+ * An opcode of {@link GypsumProtocol#BINARY_DEFINE} is followed by a wire ID
+ * and a length-prefixed name instead of params, and binds that wire ID to the
+ * name. Any other opcode is the wire ID of a command name, plus one. Parameter
+ * keys are plain wire IDs.
+ *
+ * The well-known symbols in {@link SymbolTable} are pre-bound to wire IDs equal
+ * to their symbol IDs; anything else, such as a command registered by a view,
+ * has to be defined before it's used.
+ *
+ * Unlike s-expressions, there's no way to find the start of the next frame
+ * after a malformed one, so a decoding error is fatal to the stream.
+ */
+final class BinaryReader {
+  private static final String TAG = "BinaryReader";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Returned by {@link #next} at the end of the stream. */
+  public static final int EOF = -2;
+
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+
+  /** Longest string or symbol value accepted, in bytes. */
+  private static final int MAX_STRING_SIZE = 64 * 1024;
+
+  /** Upper bound on wire IDs, matching the symbol table's own limit. */
+  private static final int MAX_WIRE_IDS = 1024;
+
+  private final InputStream stream;
+
+  private byte[] buf;
+  private int pos;
+  private int end;
+
+  /** Symbol ID bound to each wire ID, or NO_SYMBOL. */
+  private int[] wireSymbols = new int[SymbolTable.WELL_KNOWN_COUNT];
+
+  /**
+   * @param pending bytes already read from the stream that should be decoded
+   *        before anything else, such as whatever followed the form that
+   *        switched encodings.
+   */
+  public BinaryReader(InputStream stream, byte[] pending) {
+    this.stream = stream;
+
+    buf = new byte[Math.max(INITIAL_BUFFER_SIZE, pending.length)];
+    System.arraycopy(pending, 0, buf, 0, pending.length);
+    end = pending.length;
+
+    for (int i = 0; i < wireSymbols.length; i++) {
+      wireSymbols[i] = i;
+    }
+  }
+
+  /**
+   * Reads the next command frame, storing its parameters in params.
+   *
+   * @return the symbol ID of the command, {@link #EOF} at the end of the
+   *         stream, or {@link SymbolTable#NO_SYMBOL} if the frame was
+   *         malformed.
+   * @throws EOFException if the stream ends partway through a frame.
+   */
+  public int next(SymbolTable symbols, ParamTable params) throws IOException {
+    while (true) {
+      if (!ensure(1)) {
+        return EOF;
+      }
+
+      int opcode = readVarint();
+
+      if (opcode < 0) {
+        return SymbolTable.NO_SYMBOL;
+      }
+
+      if (opcode == GypsumProtocol.BINARY_DEFINE) {
+        if (!readDefine(symbols)) {
+          return SymbolTable.NO_SYMBOL;
+        }
+
+        continue;
+      }
+
+      int command = resolve(opcode - 1);
+      int count = readVarint();
+
+      if ((command == SymbolTable.NO_SYMBOL) || (count < 0)) {
+        return SymbolTable.NO_SYMBOL;
+      }
+
+      for (int i = 0; i < count; i++) {
+        if (!readParam(symbols, params)) {
+          return SymbolTable.NO_SYMBOL;
+        }
+      }
+
+      return command;
+    }
+  }
+
+  /**
+   * @return any bytes read from the stream but not yet decoded. The reader
+   *         must not be used afterwards.
+   */
+  public byte[] drain() {
+    byte[] pending = new byte[end - pos];
+    System.arraycopy(buf, pos, pending, 0, pending.length);
+    pos = end;
+    return pending;
+  }
+
+  private boolean readDefine(SymbolTable symbols) throws IOException {
+    int wireId = readVarint();
+    String name = readString();
+
+    if ((wireId < 0) || (wireId >= MAX_WIRE_IDS) || (name == null)) {
+      GypsumLog.e(TAG, "Malformed symbol definition.");
+      return false;
+    }
+
+    int id = symbols.intern(name.toLowerCase());
+
+    if (id == SymbolTable.NO_SYMBOL) {
+      GypsumLog.e(TAG, "Symbol table full; can't define " + name + ".");
+      return false;
+    }
+
+    if (wireId >= wireSymbols.length) {
+      int[] newWireSymbols = new int[Math.min(MAX_WIRE_IDS,
+          Math.max(wireSymbols.length * 2, wireId + 1))];
+      System.arraycopy(wireSymbols, 0, newWireSymbols, 0, wireSymbols.length);
+
+      for (int i = wireSymbols.length; i < newWireSymbols.length; i++) {
+        newWireSymbols[i] = SymbolTable.NO_SYMBOL;
+      }
+
+      wireSymbols = newWireSymbols;
+    }
+
+    wireSymbols[wireId] = id;
+    return true;
+  }
+
+  private boolean readParam(SymbolTable symbols, ParamTable params) throws IOException {
+    int slot = resolve(readVarint());
+
+    if (slot == SymbolTable.NO_SYMBOL) {
+      return false;
+    }
+
+    int type = readByte();
+
+    switch (type) {
+      case GypsumProtocol.BINARY_NIL:
+        params.setBoolean(slot, false);
+        return true;
+
+      case GypsumProtocol.BINARY_T:
+        params.setBoolean(slot, true);
+        return true;
+
+      case GypsumProtocol.BINARY_NUMBER:
+        params.setNumber(slot, readFloat());
+        return true;
+
+      case GypsumProtocol.BINARY_COORDINATE: {
+        float x = readFloat();
+        params.setCoordinate(slot, x, readFloat());
+        return true;
+      }
+
+      case GypsumProtocol.BINARY_STRING: {
+        String value = readString();
+
+        if (value == null) {
+          return false;
+        }
+
+        params.setString(slot, value);
+        return true;
+      }
+
+      case GypsumProtocol.BINARY_SYMBOL: {
+        String value = readString();
+
+        if (value == null) {
+          return false;
+        }
+
+        int id = symbols.intern(value.toLowerCase());
+        params.setSymbol(slot, (id != SymbolTable.NO_SYMBOL) ? symbols.name(id) : value);
+        return true;
+      }
+
+      case GypsumProtocol.BINARY_COLOR: {
+        int color = readInt();
+
+        // Only build a new color string when the color actually changes.
+        if (!params.hasColor(slot) || (params.getColor(slot) != color)) {
+          params.setColor(slot, colorString(color), color);
+        }
+
+        return true;
+      }
+
+      default:
+        GypsumLog.e(TAG, "Unknown value type " + type + ".");
+        return false;
+    }
+  }
+
+  /** @return the symbol ID bound to the given wire ID, or NO_SYMBOL. */
+  private int resolve(int wireId) {
+    if ((wireId < 0) || (wireId >= wireSymbols.length)
+        || (wireSymbols[wireId] == SymbolTable.NO_SYMBOL)) {
+      GypsumLog.e(TAG, "Unknown wire ID " + wireId + ".");
+      return SymbolTable.NO_SYMBOL;
+    }
+
+    return wireSymbols[wireId];
+  }
+
+  /** @return the varint's value, or -1 if it doesn't fit in 31 bits. */
+  private int readVarint() throws IOException {
+    int value = 0;
+
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = readByte();
+
+      if ((shift == 28) && ((b & 0x78) != 0)) {
+        break;
+      }
+
+      value |= (b & 0x7f) << shift;
+
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+
+    GypsumLog.e(TAG, "Varint out of range.");
+    return -1;
+  }
+
+  /** @return the string, or null if its length is out of range. */
+  private String readString() throws IOException {
+    int length = readVarint();
+
+    if ((length < 0) || (length > MAX_STRING_SIZE)) {
+      GypsumLog.e(TAG, "Invalid string length " + length + ".");
+      return null;
+    }
+
+    require(length);
+
+    String value = new String(buf, pos, length, UTF_8);
+    pos += length;
+    return value;
+  }
+
+  private float readFloat() throws IOException {
+    return Float.intBitsToFloat(readInt());
+  }
+
+  private int readInt() throws IOException {
+    require(4);
+
+    int value = (buf[pos] & 0xff)
+        | ((buf[pos + 1] & 0xff) << 8)
+        | ((buf[pos + 2] & 0xff) << 16)
+        | ((buf[pos + 3] & 0xff) << 24);
+    pos += 4;
+    return value;
+  }
+
+  private int readByte() throws IOException {
+    require(1);
+    return buf[pos++] & 0xff;
+  }
+
+  /** Like {@link #ensure}, but the stream ending is an error. */
+  private void require(int count) throws IOException {
+    if (!ensure(count)) {
+      throw new EOFException("End of stream inside a binary frame.");
+    }
+  }
+
+  /**
+   * Reads from the stream until at least count bytes are buffered, compacting
+   * or growing the buffer as necessary.
+   *
+   * @return false on end of stream.
+   */
+  private boolean ensure(int count) throws IOException {
+    while (end - pos < count) {
+      if (buf.length - pos < count) {
+        if (buf.length < count) {
+          byte[] newBuf = new byte[Math.max(buf.length * 2, count)];
+          System.arraycopy(buf, pos, newBuf, 0, end - pos);
+          buf = newBuf;
+        } else {
+          System.arraycopy(buf, pos, buf, 0, end - pos);
+        }
+
+        end -= pos;
+        pos = 0;
+      }
+
+      int read = stream.read(buf, end, buf.length - end);
+
+      if (read < 0) {
+        return false;
+      }
+
+      end += read;
+    }
+
+    return true;
+  }
+
+  private static String colorString(int color) {
+    String hex = Integer.toHexString(color);
+    return "#00000000".substring(0, 9 - hex.length()) + hex;
+  }
+}
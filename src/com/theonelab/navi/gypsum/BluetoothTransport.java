@@ -0,0 +1,78 @@
+package com.theonelab.navi.gypsum;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Accepts clients over Bluetooth RFCOMM, registered in SDP as
+ * {@link GypsumProtocol#BT_SERVICE_UUID}.
+ */
+public final class BluetoothTransport implements Transport {
+  private BluetoothServerSocket serverSocket;
+  private volatile boolean closed;
+
+  @Override
+  public void listen() throws IOException {
+    BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+
+    if (adapter == null) {
+      throw new IOException("Bluetooth adapter is null -- assuming Bluetooth is off.");
+    }
+
+    serverSocket = adapter.listenUsingRfcommWithServiceRecord(
+        GypsumProtocol.BT_SERVICE_NAME,
+        GypsumProtocol.BT_SERVICE_UUID);
+  }
+
+  @Override
+  public Connection accept() throws IOException {
+    final BluetoothSocket socket;
+
+    try {
+      socket = serverSocket.accept();
+    } catch (IOException e) {
+      // Closing the server socket is the only way to stop a blocked accept.
+      if (closed) {
+        return null;
+      }
+
+      throw e;
+    }
+
+    return new Connection() {
+        @Override
+        public InputStream getInputStream() throws IOException {
+          return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+          return socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+          socket.close();
+        }
+      };
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+
+    if (serverSocket != null) {
+      serverSocket.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "BluetoothTransport[" + GypsumProtocol.BT_SERVICE_UUID + "]";
+  }
+}
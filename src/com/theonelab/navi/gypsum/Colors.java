@@ -0,0 +1,72 @@
+package com.theonelab.navi.gypsum;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parses color strings the same way as
+ * {@link android.graphics.Color#parseColor}, without needing Android.
+ *
+ * Accepts <code>#RRGGBB</code>, <code>#AARRGGBB</code> and the same color
+ * names, such as <code>red</code> or <code>lightgray</code>.
+ */
+final class Colors {
+  private static final Map<String, Integer> NAMES = new HashMap<String, Integer>();
+
+  static {
+    NAMES.put("black", 0xff000000);
+    NAMES.put("darkgray", 0xff444444);
+    NAMES.put("gray", 0xff888888);
+    NAMES.put("lightgray", 0xffcccccc);
+    NAMES.put("white", 0xffffffff);
+    NAMES.put("red", 0xffff0000);
+    NAMES.put("green", 0xff00ff00);
+    NAMES.put("blue", 0xff0000ff);
+    NAMES.put("yellow", 0xffffff00);
+    NAMES.put("cyan", 0xff00ffff);
+    NAMES.put("magenta", 0xffff00ff);
+    NAMES.put("aqua", 0xff00ffff);
+    NAMES.put("fuchsia", 0xffff00ff);
+    NAMES.put("darkgrey", 0xff444444);
+    NAMES.put("grey", 0xff888888);
+    NAMES.put("lightgrey", 0xffcccccc);
+    NAMES.put("lime", 0xff00ff00);
+    NAMES.put("maroon", 0xff800000);
+    NAMES.put("navy", 0xff000080);
+    NAMES.put("olive", 0xff808000);
+    NAMES.put("purple", 0xff800080);
+    NAMES.put("silver", 0xffc0c0c0);
+    NAMES.put("teal", 0xff008080);
+  }
+
+  private Colors() {
+  }
+
+  /**
+   * @return the packed ARGB value of the given color string.
+   * @throws IllegalArgumentException if the string isn't a color.
+   */
+  static int parse(String text) {
+    if (text.startsWith("#")) {
+      // Throws NumberFormatException, an IllegalArgumentException, if malformed.
+      long color = Long.parseLong(text.substring(1), 16);
+
+      if (text.length() == 7) {
+        color |= 0x00000000ff000000L;
+      } else if (text.length() != 9) {
+        throw new IllegalArgumentException("Unknown color " + text);
+      }
+
+      return (int) color;
+    }
+
+    Integer color = NAMES.get(text.toLowerCase(Locale.ROOT));
+
+    if (color == null) {
+      throw new IllegalArgumentException("Unknown color " + text);
+    }
+
+    return color;
+  }
+}
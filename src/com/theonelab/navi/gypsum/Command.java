@@ -1,42 +1,25 @@
 package com.theonelab.navi.gypsum;
 
-import android.graphics.Color;
-import android.util.Pair;
-
-import java.util.Map;
-import java.util.Set;
-import java.util.HashSet;
-
 public abstract class Command {
-  public static final Pair<Float, Float> ZERO_COORD = Pair.create(0f, 0f);
-
-  public static String coordToString(Pair<Float, Float> coord) {
-    return "(" + coord.first + " . " + coord.second + ")";
-  }
+  private static final String TAG = "Command";
 
-  public static String getStringParam(String param, final Map<String, Value> params,
+  public static String getStringParam(int param, final ParamTable params,
       String defValue) {
-    if (params.containsKey(param)) {
-      Value value = params.get(param);
-
-      if ((value != null) && (value.type == Value.Type.String)) {
-        return value.sval;
-      }
+    if (params.getType(param) == Value.Type.String) {
+      return params.getString(param);
     }
 
     return defValue;
   }
 
-  public static String getSymbolParam(String param, final Map<String, Value> params,
+  public static String getSymbolParam(int param, final ParamTable params,
       String defValue, String... otherVals) {
-    if (params.containsKey(param)) {
-      Value value = params.get(param);
-
-      if ((value != null) && (value.type == Value.Type.Symbol)) {
-        if ((otherVals != null) && (otherVals.length > 0)) {
-          for (String otherVal : otherVals) {
-            if (value.sval.equals(otherVal)) return value.sval;
-          }
+    if (params.getType(param) == Value.Type.Symbol) {
+      String sval = params.getString(param);
+
+      if ((otherVals != null) && (otherVals.length > 0)) {
+        for (String otherVal : otherVals) {
+          if (sval.equals(otherVal)) return sval;
         }
       }
     }
@@ -44,61 +27,92 @@ public abstract class Command {
     return defValue;
   }
 
-  public static float getNumberParam(String param, final Map<String, Value> params,
-      float defValue) {
-    if (params.containsKey(param)) {
-      Value value = params.get(param);
+  /**
+   * @return the value of a parameter that names something, which may be
+   *         given either as a symbol or a string.
+   */
+  public static String getNameParam(int param, final ParamTable params,
+      String defValue) {
+    Value.Type type = params.getType(param);
 
-      if ((value != null) && (value.type == Value.Type.Number)) {
-        return value.ival;
-      }
+    if ((type == Value.Type.Symbol) || (type == Value.Type.String)) {
+      return params.getString(param);
     }
 
     return defValue;
   }
 
-  public static Pair<Float, Float> getCoordParam(String param, final Map<String, Value> params) {
-    return getCoordParam(param, params, ZERO_COORD);
+  public static float getNumberParam(int param, final ParamTable params,
+      float defValue) {
+    if (params.getType(param) == Value.Type.Number) {
+      return params.getNumber(param);
+    }
+
+    return defValue;
   }
 
-  public static Pair<Float, Float> getCoordParam(String param, final Map<String, Value> params,
-      Pair<Float, Float> defValue) {
-    if (params.containsKey(param)) {
-      Value value = params.get(param);
+  public static float getCoordX(int param, final ParamTable params) {
+    return getCoordX(param, params, 0f);
+  }
 
-      if ((value != null) && (value.type == Value.Type.Coordinate)) {
-        return Pair.create(value.xcoord, value.ycoord);
-      }
+  public static float getCoordX(int param, final ParamTable params, float defValue) {
+    if (params.getType(param) == Value.Type.Coordinate) {
+      return params.getX(param);
     }
 
     return defValue;
   }
 
-  public static boolean getBooleanParam(String param, final Map<String, Value> params,
-      boolean defValue) {
-    if (params.containsKey(param)) {
-      Value value = params.get(param);
+  public static float getCoordY(int param, final ParamTable params) {
+    return getCoordY(param, params, 0f);
+  }
 
-      if ((value != null) && (value.type == Value.Type.Boolean)) {
-        return value.bval;
-      }
+  public static float getCoordY(int param, final ParamTable params, float defValue) {
+    if (params.getType(param) == Value.Type.Coordinate) {
+      return params.getY(param);
     }
 
     return defValue;
   }
 
-  public static int getColorParam(String param, final Map<String, Value> params,
+  public static boolean getBooleanParam(int param, final ParamTable params,
+      boolean defValue) {
+    if (params.getType(param) == Value.Type.Boolean) {
+      return params.getBoolean(param);
+    }
+
+    return defValue;
+  }
+
+  public static int getColorParam(int param, final ParamTable params,
       int defValue) {
-    if (params.containsKey(param)) {
-      Value value = params.get(param);
+    if (params.getType(param) != Value.Type.String) {
+      return defValue;
+    }
 
-      if ((value != null) && (value.type == Value.Type.String)) {
-        return Color.parseColor(value.sval);
-      }
+    if (params.hasColor(param)) {
+      return params.getColor(param);
     }
 
-    return defValue;
+    // Keys the parser doesn't know to be colors get parsed once, on first use.
+    try {
+      int color = Colors.parse(params.getString(param));
+      params.cacheColor(param, color);
+      return color;
+    } catch (IllegalArgumentException e) {
+      GypsumLog.w(TAG, "Malformed color \"" + params.getString(param) + "\"; using default.");
+      return defValue;
+    }
+  }
+
+  /**
+   * @return true if the command does nothing but draw into the current frame,
+   *         so it can be skipped when a later frame is going to replace that
+   *         frame anyway.
+   */
+  public boolean isDrawing() {
+    return false;
   }
 
-  public abstract void execute(final Map<String, Value> params);
+  public abstract void execute(final ParamTable params);
 }
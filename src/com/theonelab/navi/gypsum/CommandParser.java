@@ -1,23 +1,15 @@
 package com.theonelab.navi.gypsum;
 
-import android.content.Context;
-import android.util.Log;
-
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.LineNumberReader;
-import java.io.StringReader;
-import java.io.StreamTokenizer;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A multi-threaded Gypsum protocol command parser.
@@ -28,73 +20,473 @@ import java.util.zip.InflaterInputStream;
  *
  * <pre>
  * {@code
- * CommandParser parser = new CommandParser();
+ * CommandParser parser = new CommandParser(connection.getInputStream(),
+ *     connection.getOutputStream(), listener);
+ * display.registerWithParser(parser);
+ *
  * Thread parserThread = new Thread(parser);
  * parserThread.start();
- *
- * while (String sexpr = stream.readLine()) {
- *   parserThread.addSexpr(sexpr);
- * }
- *
- * synchronized (parser) {
- *   parserThread.interrupt();
- *   parser.wait();
- * }
  * }
  * </pre>
  *
- * TODO(jtgans): Refactor this to take an InputStream directly instead of doing
- * this silly Queue business.
+ * Where connection is any {@link Transport.Connection}. The parser only ever
+ * sees its streams, so it runs the same over Bluetooth, TCP or an in-memory
+ * {@link PipeTransport}.
+ *
+ * Before reading any commands, the parser sends the client a
+ * <code>(hello :version 1 ...)</code> form listing the protocol version and
+ * everything advertised with {@link #advertise}. The client can then reply with
+ * a <code>(protocol ...)</code> form picking the encoding and compression it
+ * wants, along with the <code>:version</code> it speaks. Clients that ignore the
+ * hello carry on exactly as before.
+ *
+ * After <code>(protocol :ack t)</code>, every <code>(commit)</code> is answered
+ * with <code>(ack :frame n :render-ms x :queue-depth y :dropped z)</code>, so
+ * the client can pace itself to how fast frames are actually being drawn.
+ *
+ * By default, each command runs on the parser thread as soon as it's parsed.
+ * After {@link #setPipeline}, commands are instead queued on a
+ * {@link CommandRing} and run on a render thread of the parser's own, so slow
+ * drawing doesn't hold up reading the socket. Either way, commands run in the
+ * order they were sent, one at a time. That goes for <code>:ack</code> and
+ * <code>:coalesce</code> too, which only apply to the frames sent after them;
+ * only switching encodings takes effect as soon as it's read.
+ *
+ * With a pipeline, a client that redraws everything each frame can also send
+ * <code>(protocol :coalesce t)</code>. Whenever a later complete frame is
+ * already queued, the render thread then skips the drawing commands and commit
+ * of the frame it's on, so under load it falls behind by at most a frame.
+ * Skipped frames are still acknowledged, and counted by
+ * {@link #getDroppedFrames}.
+ *
+ * Forms are read straight off the stream by a {@link SexprReader}, and may
+ * span lines or arrive split across multiple reads. Lines continuing a form
+ * must be indented, since an open paren in column zero always starts a new
+ * form.
+ *
+ * Several commands can be sent as a single form by wrapping them in
+ * <code>(batch (line ...) (box ...) ...)</code>. The batch is checked for
+ * well-formedness as a whole before any of it runs, and ends with an implicit
+ * <code>(commit)</code>.
+ *
+ * Clients can switch to the more compact encoding decoded by
+ * {@link BinaryReader} with <code>(protocol :encoding 'binary)</code>, and back
+ * again by sending the same command as a binary frame with
+ * <code>:encoding 'sexpr</code>. Both encodings dispatch to the same commands
+ * and share the same parameters.
+ *
+ * Either encoding can also be compressed: after
+ * <code>(protocol :compression 'deflate)</code>, everything up to the end of
+ * the DEFLATE stream is read through an {@link InflatingStream}. Clients should
+ * sync flush after each frame so it's decoded straight away.
+ *
+ * When an s-expression switches encoding or turns on compression, the switch
+ * happens right after the newline ending the line the form closed on; only
+ * spaces, tabs and carriage returns may come between the closing paren and
+ * that newline. Clients must send the newline, as the parser waits for it.
+ * A binary frame switches straight after its last byte.
  */
 public class CommandParser implements Runnable {
   private static final String TAG = "CommandParser";
 
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
   public interface Listener {
     /** Notifies when the {@link CommandParser} has stopped running. */
     public void onParserStopped(CommandParser parser);
   }
 
-  /** Used to keep track of commands to run. */
-  private final ConcurrentHashMap<String, Command> commands;
+  /** Whatever draws committed frames, as reported in acks. */
+  public interface FrameQueue {
+    /** @return the number of committed frames that haven't been drawn yet. */
+    public int getQueueDepth();
+  }
+
+  /** Commands to run, indexed by the symbol ID of their name. */
+  private Command[] commands;
+
+  /** Interned command names, parameter keys and symbol values. */
+  private final SymbolTable symbols;
+
+  /** The stream commands are read from. */
+  private InputStream stream;
+
+  /**
+   * Inflates compressed input, or null if the client has never turned on
+   * compression. Once created, it stays in place as {@link #stream}.
+   */
+  private volatile InflatingStream inflating;
+
+  /** Source for reading complete forms. */
+  private SexprReader reader;
+
+  /** Source for reading binary frames, or null when reading s-expressions. */
+  private BinaryReader binary;
+
+  /** Lexer the reader hands each form to. */
+  private final SexprLexer lexer;
+
+  /** The stream the hello is written to, or null to skip the handshake. */
+  private final OutputStream output;
+
+  /** Capabilities sent in the hello, as s-expression text keyed by name. */
+  private final Map<String, String> capabilities = new LinkedHashMap<String, String>();
+
+  /** Set when the client asks for a protocol version we don't speak. */
+  private boolean rejected;
+
+  /** True if each commit should be acknowledged. */
+  private volatile boolean acking;
+
+  /** Source of the queue depth reported in acks, or null. */
+  private FrameQueue frameQueue;
+
+  // Acknowledgement state, touched only by the thread running commands.
+  private int frame;
+  private long frameNanos;
+
+  /** True if superseded frames should be skipped. */
+  private volatile boolean coalescing;
+
+  /** Number of commits queued on the ring that the render thread hasn't reached. */
+  private final AtomicInteger queuedCommits = new AtomicInteger();
+
+  /** Number of frames skipped while coalescing. */
+  private volatile int droppedFrames;
+
+  /** Queue of commands for the render thread, or null to run them inline. */
+  private CommandRing ring;
+
+  /** Runs queued commands until the ring is closed. */
+  private final Runnable renderLoop = new Runnable() {
+      @Override
+      public void run() {
+        CommandRing.Record record;
+
+        while ((record = ring.take()) != null) {
+          // If there's another commit queued past this frame's own, a whole
+          // newer frame is waiting to replace this one.
+          boolean superseded = coalescing && (queuedCommits.get() > 1);
+
+          if (record.commandId == SymbolTable.COMMIT) {
+            queuedCommits.decrementAndGet();
+
+            if (superseded) {
+              droppedFrames++;
+              endFrame();
+            } else {
+              execute(record.commandId, record.command, record.params);
+            }
+          } else if (!superseded || !record.command.isDrawing()) {
+            execute(record.commandId, record.command, record.params);
+          }
+
+          ring.release();
+        }
+      }
+    };
 
-  /** Source for reading lines. */
-  private final LineNumberReader reader;
+  /**
+   * Handles the parts of <code>(protocol ...)</code> that change how the rest
+   * of the stream is read. Always runs on the parser thread, straight away.
+   */
+  private final Command protocol;
+
+  /**
+   * Handles the parts of <code>(protocol ...)</code> that change how frames are
+   * acknowledged and coalesced. Runs in order with the commands around it, so
+   * it only affects the frames the client sends after it.
+   */
+  private final Command protocolSettings;
 
   /** Listener for various {@link CommandParser} events. */
   private final Listener listener;
 
-  /** Contains all Values for possible parameters. */
-  private final ConcurrentHashMap<String, Value> params;
+  /** Contains all values for possible parameters, by symbol ID. */
+  private final ParamTable params;
+
+  /**
+   * Parameters of the form being parsed, moved into params only once the whole
+   * form has parsed. Empty between forms.
+   */
+  private final ParamTable parsed = new ParamTable();
 
   /**
    * Constructs a new {@link CommandParser} instance from scratch with a null
-   * parameters table.
-   *
-   * If the application is running in an Android emulated environment (as
-   * determined by {@link AndroidHelper#isRunningOnEmulator}) commands will be
-   * read without any compression enabled.
+   * parameters table, reading commands without any compression enabled.
    */
-  public CommandParser(Context context, InputStream stream, Listener listener) {
-    commands = new ConcurrentHashMap<String, Command>();
-    params = new ConcurrentHashMap<String, Value>();
+  public CommandParser(InputStream stream, Listener listener) {
+    this(stream, null, listener);
+  }
+
+  /**
+   * Constructs a new {@link CommandParser} that does the protocol handshake
+   * over output before reading any commands.
+   */
+  public CommandParser(InputStream stream, OutputStream output, Listener listener) {
+    symbols = new SymbolTable();
+    commands = new Command[symbols.size()];
+    params = new ParamTable();
 
-    Log.i(TAG, "Expecting uncompressed input.");
-    reader =
-        new LineNumberReader(
-            new InputStreamReader(stream));
+    GypsumLog.i(TAG, "Expecting uncompressed input.");
+    this.stream = stream;
+    reader = new SexprReader(stream);
+    lexer = new SexprLexer();
 
+    this.output = output;
     this.listener = listener;
+
+    advertise("binary-version", Integer.toString(GypsumProtocol.BINARY_VERSION));
+    advertise("compression", "'deflate");
+    advertise("batch", "t");
+    advertise("max-form-size", Integer.toString(SexprReader.MAX_FORM_SIZE));
+    advertise("ack", "t");
+
+    // (protocol :version num
+    //           :encoding 'sexpr|'binary
+    //           :compression 'deflate
+    //           :ack t|nil
+    //           :coalesce t|nil)
+    protocol = new Command() {
+        @Override
+        public void execute(ParamTable params) {
+          int version = (int) getNumberParam(SymbolTable.VERSION, params,
+              GypsumProtocol.PROTOCOL_VERSION);
+
+          if (version != GypsumProtocol.PROTOCOL_VERSION) {
+            GypsumLog.e(TAG + "/protocol", "Client speaks protocol version " + version
+                  + ", but we only speak " + GypsumProtocol.PROTOCOL_VERSION
+                  + "; hanging up.");
+            rejected = true;
+            return;
+          }
+
+          if (params.getType(SymbolTable.ENCODING) != null) {
+            String encoding = getSymbolParam(SymbolTable.ENCODING, params, null,
+                "sexpr", "binary");
+
+            if (encoding == null) {
+              GypsumLog.e(TAG + "/protocol", "Unknown :encoding.");
+            } else {
+              setBinary(encoding.equals("binary"));
+            }
+          }
+
+          if (params.getType(SymbolTable.COMPRESSION) != null) {
+            String compression = getSymbolParam(SymbolTable.COMPRESSION, params, null,
+                "deflate");
+
+            if (compression == null) {
+              GypsumLog.e(TAG + "/protocol", "Unknown :compression.");
+            } else {
+              setCompressed();
+            }
+
+            // Compression lasts until the end of the DEFLATE stream rather than
+            // being a setting, so don't let it stick to the next protocol form.
+            params.clear(SymbolTable.COMPRESSION);
+          }
+        }
+      };
+
+    protocolSettings = new Command() {
+        @Override
+        public void execute(ParamTable params) {
+          if (params.getType(SymbolTable.ACK) != null) {
+            acking = (CommandParser.this.output != null)
+                && getBooleanParam(SymbolTable.ACK, params, false);
+          }
+
+          if (params.getType(SymbolTable.COALESCE) != null) {
+            coalescing = (ring != null) && getBooleanParam(SymbolTable.COALESCE, params, false);
+          }
+        }
+      };
+
+    registerCommand("protocol", protocol);
   }
 
   /**
-   * @return an immutable instance of the parameters table.
+   * Runs commands on a render thread of their own, queued on a
+   * {@link CommandRing} of the given capacity. Must be called before the
+   * parser is started.
+   */
+  public void setPipeline(int capacity, CommandRing.WaitStrategy wait) {
+    ring = new CommandRing(capacity, wait);
+    advertise("coalesce", "t");
+  }
+
+  /** @return the number of commands waiting for the render thread. */
+  public int getQueueDepth() {
+    return (ring != null) ? ring.size() : 0;
+  }
+
+  /** @return the most commands that have ever waited for the render thread. */
+  public int getMaxQueueDepth() {
+    return (ring != null) ? ring.maxSize() : 0;
+  }
+
+  /** @return the number of frames skipped because a later one replaced them. */
+  public int getDroppedFrames() {
+    return droppedFrames;
+  }
+
+  /** @return the number of times parsing waited for the render thread to catch up. */
+  public int getQueueStalls() {
+    return (ring != null) ? ring.stallCount() : 0;
+  }
+
+  /**
+   * Adds a capability to the hello sent to the client when the parser starts,
+   * replacing any earlier value for the same key.
+   *
+   * Must be called before the parser is started.
+   *
+   * @param value the value as s-expression text, written out verbatim; symbols
+   *        need their leading quote.
+   */
+  public void advertise(String key, String value) {
+    capabilities.put(key, value);
+  }
+
+  /**
+   * Sets where the queue depth reported in acks comes from. Must be called
+   * before the parser is started.
+   */
+  public void setFrameQueue(FrameQueue frameQueue) {
+    this.frameQueue = frameQueue;
+  }
+
+  /** Writes the hello form, if there's a stream to write it to. */
+  private void sendHello() throws IOException {
+    if (output == null) {
+      return;
+    }
+
+    StringBuilder hello = new StringBuilder("(hello :version ");
+    hello.append(GypsumProtocol.PROTOCOL_VERSION);
+
+    for (Map.Entry<String, String> entry : capabilities.entrySet()) {
+      hello.append(" :").append(entry.getKey()).append(' ').append(entry.getValue());
+    }
+
+    hello.append(")\n");
+    send(hello.toString());
+  }
+
+  /** Acknowledges the frame that was just committed. */
+  private void sendAck() {
+    int depth = (frameQueue != null) ? frameQueue.getQueueDepth() : 0;
+    String ack = String.format(Locale.US,
+        "(ack :frame %d :render-ms %.2f :queue-depth %d :dropped %d)\n",
+        frame, frameNanos / 1000000.0, depth, droppedFrames);
+
+    try {
+      send(ack);
+    } catch (IOException e) {
+      GypsumLog.e(TAG, "Couldn't send ack; no longer acknowledging commits: " + e.getMessage());
+      acking = false;
+    }
+  }
+
+  /** Writes a form back to the client. */
+  private synchronized void send(String form) throws IOException {
+    output.write(form.getBytes(UTF_8));
+    output.flush();
+  }
+
+  /**
+   * Starts inflating everything after the current form, up to the end of the
+   * client's DEFLATE stream.
+   */
+  private void setCompressed() {
+    if ((inflating != null) && inflating.isInflating()) {
+      GypsumLog.w(TAG, "Input is already compressed.");
+      return;
+    }
+
+    byte[] pending = (binary != null) ? binary.drain() : drainReader();
+
+    if (inflating == null) {
+      inflating = new InflatingStream(stream);
+      stream = inflating;
+    }
+
+    GypsumLog.i(TAG, "Expecting DEFLATE compressed input.");
+    inflating.start(pending);
+
+    if (binary != null) {
+      binary = new BinaryReader(stream, new byte[0]);
+    } else {
+      reader = new SexprReader(stream);
+    }
+  }
+
+  /**
+   * @return the number of compressed bytes read so far, or zero if the client
+   *         has never turned on compression.
+   */
+  public long getCompressedBytes() {
+    InflatingStream current = inflating;
+    return (current != null) ? current.getBytesIn() : 0;
+  }
+
+  /**
+   * @return the number of bytes compressed input has inflated to so far.
+   */
+  public long getInflatedBytes() {
+    InflatingStream current = inflating;
+    return (current != null) ? current.getBytesOut() : 0;
+  }
+
+  /**
+   * Switches the encoding commands are read in, handing over any bytes
+   * already read from the stream to the new reader.
+   */
+  private void setBinary(boolean useBinary) {
+    if (useBinary == (binary != null)) {
+      return;
+    }
+
+    if (useBinary) {
+      GypsumLog.i(TAG, "Switching to binary encoding, version "
+            + GypsumProtocol.BINARY_VERSION + ".");
+      binary = new BinaryReader(stream, drainReader());
+    } else {
+      GypsumLog.i(TAG, "Switching to s-expression encoding.");
+      reader = new SexprReader(stream, binary.drain());
+      binary = null;
+    }
+  }
+
+  /**
+   * @return the bytes following the line the current form ended on, for
+   *         whatever reads the stream next. The s-expression reader must not
+   *         be used afterwards.
+   */
+  private byte[] drainReader() {
+    try {
+      reader.skipRestOfLine();
+    } catch (IOException e) {
+      // The next read from the stream will fail the same way and stop us.
+      GypsumLog.e(TAG, "Caught IOException while switching encodings: " + e.getMessage());
+    }
+
+    return reader.drain();
+  }
+
+  /**
+   * @return an immutable snapshot of the parameters table, keyed by name.
    */
   public Map<String, Value> getParams() {
-    return Collections.unmodifiableMap(params);
+    return Collections.unmodifiableMap(params.toMap(symbols));
   }
 
   /**
    * Clears out any parameters and resets everything back to zeroes.
+   *
+   * The parser does this itself after every <code>(reset)</code>, so there's
+   * no need to call this from a command.
    */
   public void clearParams() {
     params.clear();
@@ -102,51 +494,74 @@ public class CommandParser implements Runnable {
 
   /**
    * Registers a given {@link Command} with the processor.
+   *
+   * Must be called before the parser is started: command names share the
+   * parser's {@link SymbolTable}, which is only safe to use from one thread.
    */
   public void registerCommand(String commandName, Command command) {
-    commands.putIfAbsent(commandName, command);
+    int id = symbols.intern(commandName.toLowerCase());
+
+    if (id == SymbolTable.NO_SYMBOL) {
+      GypsumLog.e(TAG, "Symbol table full; can't register [" + commandName + "].");
+      return;
+    }
+
+    if (id >= commands.length) {
+      Command[] newCommands = new Command[symbols.size()];
+      System.arraycopy(commands, 0, newCommands, 0, commands.length);
+      commands = newCommands;
+    }
+
+    if (commands[id] == null) {
+      commands[id] = command;
+    }
   }
 
   /**
    * The main processing loop.
    *
-   * This effectively polls for strings stuffed onto the sexprs queue and
-   * parses them out. In doing so, it also dispatches calls to other processes
+   * This effectively blocks on the stream for each complete form and parses
+   * it out. In doing so, it also dispatches calls to other processes
    * registered in the commands map.
    */
   @Override
   public void run() {
+    Thread renderThread = null;
+
     try {
-      String sexpr = null;
-      
-      while ((!Thread.interrupted()) && ((sexpr = reader.readLine()) != null)) {
-        String commandName = parse(sexpr, params);
-
-        if (commandName == null) {
-          Log.e(TAG, "Couldn't parse sexpr '" + sexpr + "'");
-          continue;
-        }
+      if (ring != null) {
+        renderThread = new Thread(renderLoop, "Gypsum render");
+        renderThread.start();
+      }
 
-        Command command = commands.get(commandName);
+      sendHello();
 
-        if (command == null) {
-          Log.w(TAG, "No command registered for [" + commandName + "].");
-          continue;
+      while (!rejected && !Thread.currentThread().isInterrupted()) {
+        if (binary != null) {
+          if (!runBinaryFrame()) {
+            break;
+          }
+        } else if (!runSexpr()) {
+          break;
         }
-
-        command.execute(Collections.unmodifiableMap(params));
       }
 
-      Log.i(TAG, "Exited runloop due to end-of-stream (normal exit).");
+      if (!rejected) {
+        GypsumLog.i(TAG, "Exited runloop due to end-of-stream (normal exit).");
+      }
     } catch (IOException e) {
-      Log.i(TAG, e + " while reading tokens from stream: " + e.getMessage());
+      GypsumLog.i(TAG, e + " while reading tokens from stream: " + e.getMessage());
     } finally {
+      if (renderThread != null) {
+        stopRenderThread(renderThread);
+      }
+
       // TODO: Do we want to close this? This will likely close the underlying
       // BluetoothSocket as well.
       try {
-        reader.close();
+        stream.close();
       } catch (IOException e) {
-        Log.i(TAG, "IOException thrown while closing reader: " + e.getMessage());
+        GypsumLog.i(TAG, "IOException thrown while closing stream: " + e.getMessage());
       }
 
       listener.onParserStopped(this);
@@ -154,104 +569,263 @@ public class CommandParser implements Runnable {
   }
 
   /**
-   * Does a number of checks against a sexpr to ensure that it is well formed.
-   *
-   * Checks done:
-   *   - Ensure it starts with (
-   *   - Ensure it ends with )
-   *   - Ensure () are balanced
-   *   - Ensure "" are balanced
+   * Waits for the render thread to run whatever's still queued, or drops it if
+   * the parser was interrupted.
+   */
+  private void stopRenderThread(Thread renderThread) {
+    ring.close();
+
+    if (Thread.interrupted()) {
+      renderThread.interrupt();
+    }
+
+    try {
+      renderThread.join();
+    } catch (InterruptedException e) {
+      GypsumLog.w(TAG, "Interrupted while waiting for the render thread to finish.");
+      renderThread.interrupt();
+    }
+
+    GypsumLog.i(TAG, "Render thread stopped. " + ring);
+  }
+
+  /**
+   * Reads, parses and runs the next s-expression.
    *
-   * @param sexpr the s-expression to check for well-formedness.
-   * @return true if the given sexpr is well formed.
-   * @visiblefortesting
+   * @return false at the end of the stream.
    */
-  static boolean isWellFormed(String sexpr) {
-    if (sexpr == null) {
-      Log.wtf(TAG, "sexpr is (null)?!");
+  private boolean runSexpr() throws IOException {
+    if (!reader.next(lexer)) {
       return false;
     }
 
-    if (!sexpr.startsWith("(")) {
+    int commandId = parse(lexer, symbols, params, parsed);
+
+    if (commandId == SymbolTable.NO_SYMBOL) {
+      GypsumLog.e(TAG, "Couldn't parse sexpr '" + reader.getFormString() + "' on line "
+            + reader.getLineNumber());
+    } else if (commandId == SymbolTable.BATCH) {
+      runBatch();
+    } else {
+      dispatch(commandId);
+    }
+
+    return true;
+  }
+
+  /**
+   * Reads and runs the next binary frame.
+   *
+   * @return false at the end of the stream, or if the frame was malformed.
+   */
+  private boolean runBinaryFrame() throws IOException {
+    int commandId = binary.next(symbols, params);
+
+    if (commandId == BinaryReader.EOF) {
       return false;
     }
 
-    if (!sexpr.endsWith(")")) {
+    if (commandId == SymbolTable.NO_SYMBOL) {
+      GypsumLog.e(TAG, "Malformed binary frame; can't resynchronize, so giving up on the stream.");
       return false;
     }
 
-    // Ensure we have balanced parens -- count them!
-    Pattern parenPattern = Pattern.compile("[\\)\\(]");
-    Matcher parenMatcher = parenPattern.matcher(sexpr);
-    int parenCount = 0;
+    dispatch(commandId);
+    return true;
+  }
 
-    while (parenMatcher.find()) {
-      if (parenMatcher.group(0).equals("(")) parenCount++;
-      if (parenMatcher.group(0).equals(")")) parenCount--;
+  /**
+   * Runs each command in the <code>(batch ...)</code> form the lexer has just
+   * read the name of, then commits.
+   *
+   * A command that fails to parse ends the batch early; the commands before it
+   * have already run by then, and are still committed.
+   */
+  private void runBatch() {
+    // Check the rest of the batch up front, so a malformed one runs nothing.
+    if (!lexer.validate()) {
+      logError(lexer, "Malformed batch on line " + reader.getLineNumber() + ": "
+            + lexer.getErrorMessage());
+      return;
     }
 
-    if (parenCount != 0) {
-      Log.v(TAG, "sexpr parens unbalanced.");
+    // Go back to just after the batch's name.
+    reader.rewind(lexer);
+    lexer.nextToken();
+    lexer.nextToken();
+
+    int token;
+
+    while ((token = lexer.nextToken()) == '(') {
+      int commandId = parse(lexer, symbols, params, parsed, true);
 
-      if (parenCount > 0) {
-        Log.w(TAG, "sexpr parens unbalanced: too many (s");
-      } else if (parenCount < 0) {
-        Log.w(TAG, "sexpr parens unbalanced: too many )s");
+      if (commandId == SymbolTable.NO_SYMBOL) {
+        GypsumLog.e(TAG, "Couldn't parse command in batch on line " + reader.getLineNumber()
+              + "; skipping the rest of it.");
+        break;
       }
 
-      return false;
+      dispatch(commandId);
     }
 
-    // Ensure we have balanced quotes -- count them, too!
-    Pattern quotePattern = Pattern.compile("\"");
-    Matcher quoteMatcher = quotePattern.matcher(sexpr);
-    int quoteCount = 0;
+    if ((token != '(') && (token != ')')) {
+      logError(lexer, "Expected a command or the end of the batch!");
+    }
 
-    while (quoteMatcher.find()) {
-      quoteCount++;
+    dispatch(SymbolTable.COMMIT);
+  }
+
+  /**
+   * Runs the command registered under the given symbol ID, or queues it for
+   * the render thread.
+   */
+  private void dispatch(int commandId) {
+    Command command = (commandId < commands.length) ? commands[commandId] : null;
+
+    if (command == null) {
+      GypsumLog.w(TAG, "No command registered for [" + symbols.name(commandId) + "].");
+    } else if (command == protocol) {
+      // Switching encodings can't wait for the commands queued before it, as
+      // the very next form may be in the new encoding. The rest of the
+      // settings take their turn.
+      protocol.execute(params);
+
+      if (!rejected) {
+        run(commandId, protocolSettings);
+      }
+    } else {
+      run(commandId, command);
     }
 
-    if ((quoteCount % 2) != 0) {
-      Log.w(TAG, "sexpr quotes unbalanced: too many/few \"s.");
-      return false;
+    if (commandId == SymbolTable.RESET) {
+      params.clear();
     }
+  }
 
-    return true;
+  /** Runs a command straight away, or queues it for the render thread. */
+  private void run(int commandId, Command command) {
+    if (ring == null) {
+      execute(commandId, command, params);
+      return;
+    }
+
+    CommandRing.Record record = ring.claim();
+
+    // Null if we were interrupted, which ends the run loop.
+    if (record != null) {
+      record.commandId = commandId;
+      record.command = command;
+      record.params.copyFrom(params);
+
+      if (commandId == SymbolTable.COMMIT) {
+        queuedCommits.incrementAndGet();
+      }
+
+      ring.publish();
+    }
+  }
+
+  /** Runs a command, acknowledging it if it's a commit and acks are on. */
+  private void execute(int commandId, Command command, ParamTable params) {
+    if (acking) {
+      long start = System.nanoTime();
+      command.execute(params);
+      frameNanos += System.nanoTime() - start;
+    } else {
+      command.execute(params);
+    }
+
+    if (commandId == SymbolTable.COMMIT) {
+      endFrame();
+    }
+  }
+
+  /** Counts a frame as finished, whether it was drawn or skipped. */
+  private void endFrame() {
+    frame++;
+
+    if (acking) {
+      sendAck();
+    }
+
+    frameNanos = 0;
   }
 
   /**
-   * Prepares a new {@link StreamTokenizer} for parsing the given sexpr.
+   * Does a number of checks against a sexpr to ensure that it is well formed.
+   *
+   * Checks done:
+   *   - Ensure it starts with (
+   *   - Ensure it ends with )
+   *   - Ensure () are balanced
+   *   - Ensure "" are balanced, taking escaped quotes into account
+   *
+   * The paren and quote checks are done by {@link SexprLexer} in a single
+   * pass. {@link #parse} does the same checks as it goes, so this is only
+   * needed to check a sexpr without parsing it.
+   *
+   * @param sexpr the s-expression to check for well-formedness.
+   * @return true if the given sexpr is well formed.
+   * @visiblefortesting
    */
-  private static StreamTokenizer getTokenizer(String sexpr) {
-    StringReader reader = new StringReader(sexpr);
-    StreamTokenizer tokenizer = new StreamTokenizer(reader);
+  static boolean isWellFormed(String sexpr) {
+    if (sexpr == null) {
+      GypsumLog.wtf(TAG, "sexpr is (null)?!");
+      return false;
+    }
 
-    tokenizer.resetSyntax();
+    if (!sexpr.startsWith("(")) {
+      return false;
+    }
 
-    tokenizer.eolIsSignificant(true);
-    tokenizer.lowerCaseMode(true);
-    tokenizer.parseNumbers();
+    if (!sexpr.endsWith(")")) {
+      return false;
+    }
 
-    tokenizer.quoteChar('"');
+    SexprLexer lexer = lexers.get();
+    lexer.reset(sexpr);
 
-    tokenizer.wordChars('a', 'z');
-    tokenizer.wordChars('A', 'Z');
-    tokenizer.wordChars('-', '-');
+    if (!lexer.validate()) {
+      logError(lexer, "sexpr not well formed: " + lexer.getErrorMessage());
+      return false;
+    }
 
-    // Allow for dots in dotted pairs.
-    tokenizer.ordinaryChar('.');
+    return true;
+  }
+
+  /**
+   * Per-thread {@link SexprLexer}s for {@link #parse(String, Map)}, so repeated
+   * parses on a thread reuse the same lexer buffers.
+   */
+  private static final ThreadLocal<SexprLexer> lexers = new ThreadLocal<SexprLexer>() {
+      @Override
+      protected SexprLexer initialValue() {
+        return new SexprLexer();
+      }
+    };
 
-    // 32 is space, everything before is control characters.
-    tokenizer.whitespaceChars(0, 32);
+  /** Per-thread {@link SymbolTable}s for {@link #parse(String, Map)}. */
+  private static final ThreadLocal<SymbolTable> symbolTables = new ThreadLocal<SymbolTable>() {
+      @Override
+      protected SymbolTable initialValue() {
+        return new SymbolTable();
+      }
+    };
 
-    return tokenizer;
-  }
+  /** Per-thread scratch {@link ParamTable}s for {@link #parse(String, Map)}. */
+  private static final ThreadLocal<ParamTable> paramTables = new ThreadLocal<ParamTable>() {
+      @Override
+      protected ParamTable initialValue() {
+        return new ParamTable();
+      }
+    };
 
   /**
    * Returns the command and extracts all tagged parameters in an s-expression.
    *
    * params is updated atomically, and only if the sexpr passed in was formatted
-   * correctly.
+   * correctly: the sexpr is parsed into a scratch table first, which is only
+   * copied into params once the whole sexpr has parsed.
    *
    * @param sexpr the s-expression to extract the tagged parameters from.
    * @param params the {@link Map} to store each {@link Paramenter} in.
@@ -259,231 +833,399 @@ public class CommandParser implements Runnable {
    *         was invalid in some way.
    */
   public static String parse(String sexpr, Map<String, Value> params) {
-    if (!isWellFormed(sexpr)) {
-      Log.e(TAG, "Sexpr " + sexpr + " not well formed.");
+    if (sexpr == null) {
+      GypsumLog.wtf(TAG, "sexpr is (null)?!");
       return null;
     }
 
-    StreamTokenizer tokenizer = getTokenizer(sexpr);
-    boolean inExpression = false;
-
-    String command = null;
-    int token;
-
-    try {
-      while ((token = tokenizer.nextToken()) != StreamTokenizer.TT_EOF) {
-        switch (token) {
-          case '(':
-            if (inExpression) {
-              Log.e(TAG, "Unexpected subexpression!");
-              return null;
-            }
+    // Same as isWellFormed; the rest of its checks are made while parsing.
+    if (!sexpr.startsWith("(") || !sexpr.endsWith(")")) {
+      GypsumLog.e(TAG, "Sexpr " + sexpr + " not well formed.");
+      return null;
+    }
 
-            inExpression = true;
-            break;
+    SexprLexer lexer = lexers.get();
+    SymbolTable symbols = symbolTables.get();
+    ParamTable parsed = paramTables.get();
 
-          case StreamTokenizer.TT_WORD:
-            if (!inExpression) {
-              Log.e(TAG, "Expression did not start with '('!");
-              return null;
-            } else if (command == null) {
-              command = tokenizer.sval.toLowerCase();
-            } else {
-              Log.e(TAG, "Unrecognized bareword [" + tokenizer.sval + "]");
-              return null;
-            }
-            break;
+    // Only names come out of here, so rather than let the table fill up and
+    // refuse new symbols, start a new one.
+    if (symbols.size() >= SymbolTable.MAX_SYMBOLS / 2) {
+      symbols = new SymbolTable();
+      symbolTables.set(symbols);
+    }
 
-          case StreamTokenizer.TT_NUMBER:
-            if (!inExpression) {
-              Log.e(TAG, "Expression did not start with '('!");
-              return null;
-            }
+    lexer.reset(sexpr);
+    parsed.clear();
 
-            Log.e(TAG, "Unexpected number '" + tokenizer.nval + "'");
-            return null;
-          
-          case '\'':
-          case ':':
-            if (!inExpression) {
-              Log.e(TAG, "Expression did not start with '('!");
-              return null;
-            }
+    // A (batch ...) is parsed like any other command here, as it always was.
+    int command = parseForm(lexer, symbols, parsed, parsed, false, false);
 
-            // This is the start of the command in the plist. Continue so we can
-            // grab it the next time around.
-            if (command == null) {
-              continue;
-            }
+    if (command == SymbolTable.NO_SYMBOL) {
+      parsed.clear();
+      return null;
+    }
 
-            String paramName = CommandParser.parseParamSymbol(tokenizer);
+    // Whatever made it into the scratch table was set by this sexpr.
+    params.putAll(parsed.toMap(symbols));
+    parsed.clear();
 
-            if (paramName == null) {
-              Log.e(TAG, "Couldn't parse param name.");
-              return null;
-            }
+    return symbols.name(command);
+  }
 
-            Value paramValue = null;
+  /**
+   * Returns the command and extracts all tagged parameters from the
+   * s-expression the given {@link SexprLexer} has been reset to.
+   *
+   * Command names, parameter keys and symbol values are resolved through
+   * symbols, and each parameter is stored in params under its key's symbol ID.
+   * The parameters are parsed into scratch first, and only moved into params
+   * if the whole form parses, so a rejected form leaves params untouched.
+   * scratch must be empty, and is left empty.
+   *
+   * For a <code>(batch ...)</code> form, parsing stops right after the name,
+   * leaving the lexer positioned at the first command in the batch.
+   *
+   * @return the symbol ID of the parsed command name, or
+   *         {@link SymbolTable#NO_SYMBOL} if the sexpr was invalid in some way.
+   * @see #parse(String, Map)
+   */
+  static int parse(SexprLexer lexer, SymbolTable symbols, ParamTable params,
+      ParamTable scratch) {
+    return parse(lexer, symbols, params, scratch, false);
+  }
 
-            if (params.containsKey(paramName)) {
-              paramValue = params.get(paramName);
-            } else {
-              paramValue = new Value();
-            }
+  /**
+   * @param nested true if the lexer has already read the form's opening '(',
+   *        as for a command inside a batch. Parsing then stops at the form's
+   *        closing ')'.
+   * @see #parse(SexprLexer, SymbolTable, ParamTable, ParamTable)
+   */
+  private static int parse(SexprLexer lexer, SymbolTable symbols, ParamTable params,
+      ParamTable scratch, boolean nested) {
+    int command = parseForm(lexer, symbols, params, scratch, nested, true);
+
+    if (command == SymbolTable.NO_SYMBOL) {
+      scratch.clear();
+    } else {
+      scratch.moveTo(params);
+    }
 
-            if (!CommandParser.parseParamValue(tokenizer, paramValue)) {
-              Log.e(TAG, "Couldn't parse param name or value.");
-              return null;
-            }
+    return command;
+  }
 
-            params.put(paramName, paramValue);
-            break;
+  /**
+   * Parses a form, storing its parameters in parsed. params holds the
+   * parameters already in effect, and is only read, so that values resent
+   * unchanged can reuse what's already there.
+   *
+   * @param batches true to stop right after the name of a
+   *        <code>(batch ...)</code> form, rather than parsing it as a plain
+   *        command.
+   * @see #parse(SexprLexer, SymbolTable, ParamTable, ParamTable, boolean)
+   */
+  private static int parseForm(SexprLexer lexer, SymbolTable symbols, ParamTable params,
+      ParamTable parsed, boolean nested, boolean batches) {
+    boolean inExpression = nested;
 
-          case ')':
-            if (!inExpression) {
-              Log.e(TAG, "Premature end of expression -- did not start with '('!");
-              return null;
-            }
+    int command = SymbolTable.NO_SYMBOL;
+    int token;
 
-            if (command == null) {
-              Log.e(TAG, "Premature end of expression -- no command specified!");
-              return null;
+    while ((token = lexer.nextToken()) != SexprLexer.TT_EOF) {
+      switch (token) {
+        case SexprLexer.TT_ERROR:
+          logError(lexer, lexer.getErrorMessage());
+          return SymbolTable.NO_SYMBOL;
+
+        case '(':
+          if (inExpression) {
+            logError(lexer, "Unexpected subexpression!");
+            return SymbolTable.NO_SYMBOL;
+          }
+
+          inExpression = true;
+          break;
+
+        case SexprLexer.TT_WORD:
+          if (!inExpression) {
+            logError(lexer, "Expression did not start with '('!");
+            return SymbolTable.NO_SYMBOL;
+          } else if (command == SymbolTable.NO_SYMBOL) {
+            command = symbols.intern(lexer);
+
+            if (command == SymbolTable.NO_SYMBOL) {
+              logError(lexer, "Symbol table full; can't intern command name.");
+              return SymbolTable.NO_SYMBOL;
             }
 
-            inExpression = false;
-            break;
+            if (batches && (command == SymbolTable.BATCH)) {
+              if (nested) {
+                logError(lexer, "Batches can't be nested!");
+                return SymbolTable.NO_SYMBOL;
+              }
 
-          default:
-            Log.v(TAG, "Tokenized unknown token [" + token + "].");
-            Log.e(TAG, "Unexpected character '" + tokenizer.sval + "'!");
-            return null;
-        }
-      }
-
-      if (inExpression) {
-        Log.e(TAG, "EOL encountered while waiting for end of expression!");
-        return null;
+              return command;
+            }
+          } else {
+            logError(lexer, "Unrecognized bareword [" + lexer.tokenString() + "]");
+            return SymbolTable.NO_SYMBOL;
+          }
+          break;
+
+        case SexprLexer.TT_NUMBER:
+          if (!inExpression) {
+            logError(lexer, "Expression did not start with '('!");
+            return SymbolTable.NO_SYMBOL;
+          }
+
+          logError(lexer, "Unexpected number '" + lexer.nval + "'");
+          return SymbolTable.NO_SYMBOL;
+        
+        case '\'':
+        case ':':
+          if (!inExpression) {
+            logError(lexer, "Expression did not start with '('!");
+            return SymbolTable.NO_SYMBOL;
+          }
+
+          // This is the start of the command in the plist. Continue so we can
+          // grab it the next time around.
+          if (command == SymbolTable.NO_SYMBOL) {
+            continue;
+          }
+
+          int paramId = CommandParser.parseParamSymbol(lexer, symbols);
+
+          if (paramId == SymbolTable.NO_SYMBOL) {
+            logError(lexer, "Couldn't parse param name.");
+            return SymbolTable.NO_SYMBOL;
+          }
+
+          if (!CommandParser.parseParamValue(lexer, symbols, params, parsed, paramId)) {
+            logError(lexer, "Couldn't parse param name or value.");
+            return SymbolTable.NO_SYMBOL;
+          }
+
+          break;
+
+        case ')':
+          if (!inExpression) {
+            logError(lexer, "Premature end of expression -- did not start with '('!");
+            return SymbolTable.NO_SYMBOL;
+          }
+
+          if (command == SymbolTable.NO_SYMBOL) {
+            logError(lexer, "Premature end of expression -- no command specified!");
+            return SymbolTable.NO_SYMBOL;
+          }
+
+          if (nested) {
+            return command;
+          }
+
+          inExpression = false;
+          break;
+
+        default:
+          GypsumLog.v(TAG, "Tokenized unknown token [" + token + "].");
+          logError(lexer, "Unexpected character '" + lexer.tokenString() + "'!");
+          return SymbolTable.NO_SYMBOL;
       }
+    }
 
-      return command;
-    } catch (IOException e) {
-      Log.e(TAG, "Caught IOException during parse -- this shouldn't happen!");
-      return null;
+    if (inExpression) {
+      logError(lexer, "EOL encountered while waiting for end of expression!");
+      return SymbolTable.NO_SYMBOL;
     }
+
+    return command;
+  }
+
+  /**
+   * Logs a parse error along with where in the input the lexer was when it
+   * happened.
+   */
+  private static void logError(SexprLexer lexer, String message) {
+    GypsumLog.e(TAG, message + " (line " + lexer.getLine() + ", column " + lexer.getColumn()
+          + ", offset " + lexer.getOffset() + ")");
   }
 
   /**
    * Parses in a plist tag symbol.
    *
    * Parses a symbol of the form <code>:foo</code>. Extracts just the name part
-   * from the symbol and returns it.
+   * from the symbol and returns its interned ID.
    */
-  private static String parseParamSymbol(StreamTokenizer tokenizer)
-      throws IOException {
-    int token = tokenizer.nextToken();
+  private static int parseParamSymbol(SexprLexer lexer, SymbolTable symbols) {
+    int token = lexer.nextToken();
 
     switch (token) {
-      case StreamTokenizer.TT_WORD:
-        return tokenizer.sval.toLowerCase();
+      case SexprLexer.TT_WORD:
+        return symbols.intern(lexer);
+
+      case SexprLexer.TT_EOF:
+        logError(lexer, "Unexpected end of stream in plist symbol!");
+        return SymbolTable.NO_SYMBOL;
 
-      case StreamTokenizer.TT_EOF:
-      case StreamTokenizer.TT_EOL:
-        Log.e(TAG, "Unexpected end of stream in plist symbol!");
-        return null;
+      case SexprLexer.TT_ERROR:
+        logError(lexer, lexer.getErrorMessage());
+        return SymbolTable.NO_SYMBOL;
 
-      case StreamTokenizer.TT_NUMBER:
-        Log.e(TAG, "Unexpected number '" + tokenizer.nval + " in plist symbol!");
-        return null;
+      case SexprLexer.TT_NUMBER:
+        logError(lexer, "Unexpected number '" + lexer.nval + " in plist symbol!");
+        return SymbolTable.NO_SYMBOL;
 
       default:
-        Log.e(TAG, "Unexpected character '" + token + "' in plist symbol!");
-        return null;
+        logError(lexer, "Unexpected character '" + token + "' in plist symbol!");
+        return SymbolTable.NO_SYMBOL;
     }
   }
 
   /**
-   * Parses in a plist value into a {@link Value} instance.
+   * Parses in a plist value into a {@link ParamTable} slot.
    *
-   * Does some basic parsing of the various types and converts them into usable
-   * {@link Value} instances.
+   * Does some basic parsing of the various types and stores them in the slot's
+   * typed storage.
    *
-   * @param tokenizer The {@link StreamTokenizer} to grab tokens from.
-   * @param value The previous {@link Value} -- this will be mutated on
-   *              successful parsing.
-   * @return true when the param value could be parsed, false otherwise. value
-   *         remains unchanged on failure.
+   * @param lexer The {@link SexprLexer} to grab tokens from.
+   * @param symbols The {@link SymbolTable} to intern symbol values in.
+   * @param params The {@link ParamTable} holding the slot's current value,
+   *               which is reused if the new value is the same.
+   * @param parsed The {@link ParamTable} to store the value in.
+   * @param slot The slot to store the value in -- this will be overwritten on
+   *             successful parsing.
+   * @return true when the param value could be parsed, false otherwise. The
+   *         slot remains unchanged on failure.
    */
-  private static boolean parseParamValue(StreamTokenizer tokenizer, Value value)
-      throws IOException {
-    int token = tokenizer.nextToken();
+  private static boolean parseParamValue(SexprLexer lexer, SymbolTable symbols,
+      ParamTable params, ParamTable parsed, int slot) {
+    int token = lexer.nextToken();
 
     switch (token) {
-      case StreamTokenizer.TT_EOF:
-      case StreamTokenizer.TT_EOL:
-        Log.e(TAG, "Unexpected end of stream in plist value!");
+      case SexprLexer.TT_EOF:
+        logError(lexer, "Unexpected end of stream in plist value!");
         return false;
 
-      case StreamTokenizer.TT_WORD:
-        String parsedValue = tokenizer.sval.toLowerCase();
+      case SexprLexer.TT_ERROR:
+        logError(lexer, lexer.getErrorMessage());
+        return false;
 
-        if (parsedValue.equals("nil")) {
-          value.type = Value.Type.Boolean;
-          value.bval = false;
+      case SexprLexer.TT_WORD:
+        if (lexer.tokenEquals("nil")) {
+          parsed.setBoolean(slot, false);
           return true;
-        } else if (parsedValue.equals("t")) {
-          value.type = Value.Type.Boolean;
-          value.bval = true;
+        } else if (lexer.tokenEquals("t")) {
+          parsed.setBoolean(slot, true);
           return true;
         }
 
-        Log.e(TAG, "Unexpected bareword '" + tokenizer.sval + "' found in plist "
+        logError(lexer, "Unexpected bareword '" + lexer.tokenString() + "' found in plist "
               + "value!");
         return false;
 
-      case StreamTokenizer.TT_NUMBER:
-        value.type = Value.Type.Number;
-        value.ival = (float) tokenizer.nval;
+      case SexprLexer.TT_NUMBER:
+        parsed.setNumber(slot, lexer.nval);
         return true;
 
-      case '"':    // Quoted string
-        value.type = Value.Type.String;
-        value.sval = tokenizer.sval;
+      case SexprLexer.TT_STRING:    // Quoted string
+        if (SymbolTable.isColorKey(slot)) {
+          return parseColor(lexer, params, parsed, slot);
+        }
+
+        parsed.setString(slot, reuseOrCreateString(lexer, params, slot));
         return true;
 
       case '\'':   // Symbol
-        return parseSymbol(tokenizer, value);
+        return parseSymbol(lexer, symbols, parsed, slot);
 
       case '(':    // Coordinate
-        return parseCoordinate(tokenizer, value);
+        return parseCoordinate(lexer, parsed, slot);
 
       default:
-        Log.e(TAG, "Unexpected character '" + (char)(token) + "' in plist value!");
+        logError(lexer, "Unexpected character '" + (char)(token) + "' in plist value!");
         return false;
     }
   }
 
+  /**
+   * Returns the slot's current string if it matches the current token, or a
+   * newly allocated {@link String} otherwise. Sticky parameters such as
+   * <code>:font</code> are usually resent unchanged, so this saves allocating
+   * an identical string for every command.
+   */
+  private static String reuseOrCreateString(SexprLexer lexer, ParamTable params, int slot) {
+    Value.Type type = params.getType(slot);
+
+    if ((type == Value.Type.String) || (type == Value.Type.Symbol)) {
+      String current = params.getString(slot);
+
+      if (lexer.tokenEquals(current)) {
+        return current;
+      }
+    }
+
+    return lexer.tokenString();
+  }
+
+  /**
+   * Parses a color string into the given slot of parsed, caching its packed
+   * ARGB value.
+   *
+   * A color that is resent unchanged keeps the value already cached in params
+   * and isn't parsed again.
+   *
+   * A malformed color rejects the whole form. Since the form's parameters only
+   * reach params once it has parsed, none of the ones before the color take
+   * effect either.
+   *
+   * @return true if the color could be parsed, false otherwise. The slot
+   *         remains unchanged on failure.
+   */
+  private static boolean parseColor(SexprLexer lexer, ParamTable params, ParamTable parsed,
+      int slot) {
+    String text = reuseOrCreateString(lexer, params, slot);
+
+    if (params.hasColor(slot) && (text == params.getString(slot))) {
+      parsed.setColor(slot, text, params.getColor(slot));
+      return true;
+    }
+
+    try {
+      parsed.setColor(slot, text, Colors.parse(text));
+      return true;
+    } catch (IllegalArgumentException e) {
+      logError(lexer, "Malformed color \"" + text + "\"");
+      return false;
+    }
+  }
+
   /**
    * Parses in a symbol expression.
    *
    * Symbol expressions are of the form <code>'foo</code>.
    *
-   * @param tokenizer The {@link StreamTokenizer} to read tokens from.
-   * @param value A {@link Value} to store the newly parsed value in. Will be
-   *        mutated.
+   * @param lexer The {@link SexprLexer} to read tokens from.
+   * @param symbols The {@link SymbolTable} to intern the symbol in.
+   * @param params The {@link ParamTable} to store the newly parsed value in.
+   * @param slot The slot to store the value in. Will be overwritten.
    * @return true if the symbol could be parsed successfully, false otherwise.
-   *         value remains unchanged on failure.
+   *         The slot remains unchanged on failure.
    */
-  private static boolean parseSymbol(StreamTokenizer tokenizer, Value value)
-      throws IOException {
-    int token = tokenizer.nextToken();
+  private static boolean parseSymbol(SexprLexer lexer, SymbolTable symbols,
+      ParamTable params, int slot) {
+    int token = lexer.nextToken();
 
-    if (token != StreamTokenizer.TT_WORD) {
-      Log.e(TAG, "Malformed symbol found in plist!");
+    if (token == SexprLexer.TT_ERROR) {
+      logError(lexer, lexer.getErrorMessage());
+      return false;
+    } else if (token != SexprLexer.TT_WORD) {
+      logError(lexer, "Malformed symbol found in plist!");
       return false;
     }
 
-    value.type = Value.Type.Symbol;
-    value.sval = tokenizer.sval;
+    int id = symbols.intern(lexer);
+
+    params.setSymbol(slot, (id != SymbolTable.NO_SYMBOL) ? symbols.name(id) : lexer.tokenString());
     return true;
   }
 
@@ -492,47 +1234,57 @@ public class CommandParser implements Runnable {
    *
    * Coordinate sexprs are of the dotted cons cell form <code>(0 . 0)</code>.
    *
-   * @param tokenizer The {@link StreamTokenizer} to read tokens from.
-   * @param value A {@link Value} to store the newly parsed coordinate in. Will
-   *        be mutated.
+   * @param lexer The {@link SexprLexer} to read tokens from.
+   * @param params The {@link ParamTable} to store the newly parsed coordinate
+   *        in.
+   * @param slot The slot to store the coordinate in. Will be overwritten.
    * @return true if the coordinate could be parsed successfully, false
-   *         otherwise. value remains unchanged on failure.
+   *         otherwise. The slot remains unchanged on failure.
    */
-  private static boolean parseCoordinate(StreamTokenizer tokenizer, Value value)
-      throws IOException {
-    int token = tokenizer.nextToken();
+  private static boolean parseCoordinate(SexprLexer lexer, ParamTable params, int slot) {
+    int token = lexer.nextToken();
 
-    if (token != StreamTokenizer.TT_NUMBER) {
-      Log.e(TAG, "Expected number in sub-sexpr!");
+    if (token == SexprLexer.TT_ERROR) {
+      logError(lexer, lexer.getErrorMessage());
+      return false;
+    } else if (token != SexprLexer.TT_NUMBER) {
+      logError(lexer, "Expected number in sub-sexpr!");
       return false;
     }
 
-    float x = (float) tokenizer.nval;
-    token = tokenizer.nextToken();
+    float x = lexer.nval;
+    token = lexer.nextToken();
 
-    if (token != '.') {
-      Log.e(TAG, "Expected dotted sub-sexpr!");
+    if (token == SexprLexer.TT_ERROR) {
+      logError(lexer, lexer.getErrorMessage());
+      return false;
+    } else if (token != '.') {
+      logError(lexer, "Expected dotted sub-sexpr!");
       return false;
     }
 
-    token = tokenizer.nextToken();
+    token = lexer.nextToken();
 
-    if (token != StreamTokenizer.TT_NUMBER) {
-      Log.e(TAG, "Expected number in second half of sub-sexpr!");
+    if (token == SexprLexer.TT_ERROR) {
+      logError(lexer, lexer.getErrorMessage());
+      return false;
+    } else if (token != SexprLexer.TT_NUMBER) {
+      logError(lexer, "Expected number in second half of sub-sexpr!");
       return false;
     }
 
-    float y = (float) tokenizer.nval;
-    token = tokenizer.nextToken();
+    float y = lexer.nval;
+    token = lexer.nextToken();
 
-    if (token != ')') {
-      Log.e(TAG, "Expected end of sub-sexpr!");
+    if (token == SexprLexer.TT_ERROR) {
+      logError(lexer, lexer.getErrorMessage());
+      return false;
+    } else if (token != ')') {
+      logError(lexer, "Expected end of sub-sexpr!");
       return false;
     }
 
-    value.type = Value.Type.Coordinate;
-    value.xcoord = x;
-    value.ycoord = y;
+    params.setCoordinate(slot, x, y);
     return true;
   }
 }
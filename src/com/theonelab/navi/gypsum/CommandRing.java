@@ -0,0 +1,219 @@
+package com.theonelab.navi.gypsum;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer, single-consumer queue of parsed commands, handing
+ * them from the thread reading the socket to the thread running them.
+ *
+ * Every record, along with its {@link ParamTable}, is allocated up front and
+ * reused as the ring wraps around, so queueing a command never allocates. The
+ * producer only ever writes <code>tail</code> and the consumer only ever
+ * writes <code>head</code>, so neither needs a lock.
+ *
+ * Usage on the producer side is {@link #claim}, fill in the record, then
+ * {@link #publish}; on the consumer side it's {@link #take}, run the record,
+ * then {@link #release}.
+ */
+public final class CommandRing {
+  /** How a thread waits for the other side when the ring is full or empty. */
+  public enum WaitStrategy {
+    /**
+     * Busy-waits, yielding the CPU between checks. Lowest latency, but keeps a
+     * core awake while the connection is idle.
+     */
+    SPIN,
+
+    /** Parks the waiting thread until the other side wakes it up. */
+    PARK,
+  }
+
+  /** Default number of records. */
+  public static final int DEFAULT_CAPACITY = 256;
+
+  /** A queued command and the parameters it runs with. */
+  public static final class Record {
+    public Command command;
+    public int commandId;
+    public final ParamTable params = new ParamTable();
+  }
+
+  private final Record[] records;
+  private final int mask;
+  private final WaitStrategy wait;
+
+  /** Index of the next record to take. Written by the consumer only. */
+  private volatile long head;
+
+  /** Index of the next record to claim. Written by the producer only. */
+  private volatile long tail;
+
+  private volatile boolean closed;
+
+  // Threads parked waiting for the other side, when using PARK.
+  private volatile Thread parkedProducer;
+  private volatile Thread parkedConsumer;
+
+  // Statistics, written by the producer only.
+  private volatile int maxDepth;
+  private volatile int stalls;
+
+  /**
+   * @param capacity the number of records, rounded up to a power of two.
+   */
+  public CommandRing(int capacity, WaitStrategy wait) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+    records = new Record[size];
+    mask = size - 1;
+    this.wait = wait;
+
+    for (int i = 0; i < size; i++) {
+      records[i] = new Record();
+    }
+  }
+
+  /**
+   * Waits for a free record. Producer thread only.
+   *
+   * @return the record to fill in, or null if the producer was interrupted
+   *         while waiting, in which case its interrupt status is still set.
+   */
+  public Record claim() {
+    long index = tail;
+
+    if (index - head >= records.length) {
+      stalls++;
+
+      while (index - head >= records.length) {
+        if (!await(true)) {
+          return null;
+        }
+      }
+    }
+
+    return records[(int) index & mask];
+  }
+
+  /** Hands the most recently claimed record to the consumer. */
+  public void publish() {
+    long index = tail + 1;
+    tail = index;
+
+    int depth = (int) (index - head);
+
+    if (depth > maxDepth) {
+      maxDepth = depth;
+    }
+
+    wake(parkedConsumer);
+  }
+
+  /**
+   * Waits for a published record. Consumer thread only.
+   *
+   * @return the next record, or null once the ring has been closed and
+   *         emptied, or if the consumer was interrupted while waiting.
+   */
+  public Record take() {
+    long index = head;
+
+    while (index == tail) {
+      if (closed) {
+        // Anything published before closing is visible by now.
+        if (index == tail) {
+          return null;
+        }
+
+        break;
+      }
+
+      if (!await(false)) {
+        return null;
+      }
+    }
+
+    return records[(int) index & mask];
+  }
+
+  /** Hands the most recently taken record back to the producer. */
+  public void release() {
+    head = head + 1;
+    wake(parkedProducer);
+  }
+
+  /**
+   * Tells the consumer there's nothing more coming. Once it's taken every
+   * record already published, {@link #take} returns null.
+   */
+  public void close() {
+    closed = true;
+    wake(parkedConsumer);
+  }
+
+  /** @return the number of records published but not yet released. */
+  public int size() {
+    return (int) (tail - head);
+  }
+
+  public int capacity() {
+    return records.length;
+  }
+
+  /** @return the most records that have ever been queued at once. */
+  public int maxSize() {
+    return maxDepth;
+  }
+
+  /** @return the number of times the producer has had to wait for room. */
+  public int stallCount() {
+    return stalls;
+  }
+
+  /**
+   * Waits a little while for the other side to make progress.
+   *
+   * @return false if the thread was interrupted.
+   */
+  private boolean await(boolean producer) {
+    if (wait == WaitStrategy.SPIN) {
+      Thread.yield();
+    } else {
+      Thread self = Thread.currentThread();
+
+      if (producer) {
+        parkedProducer = self;
+
+        // Check again now that the consumer can see we're parked, so we don't
+        // miss a release that happened in between.
+        if (tail - head >= records.length) {
+          LockSupport.park(this);
+        }
+
+        parkedProducer = null;
+      } else {
+        parkedConsumer = self;
+
+        if ((head == tail) && !closed) {
+          LockSupport.park(this);
+        }
+
+        parkedConsumer = null;
+      }
+    }
+
+    return !Thread.currentThread().isInterrupted();
+  }
+
+  private static void wake(Thread thread) {
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "CommandRing[size=" + size() + "/" + capacity() + ", max=" + maxSize()
+        + ", stalls=" + stallCount() + ", wait=" + wait + "]";
+  }
+}
@@ -2,7 +2,6 @@ package com.theonelab.navi.gypsum;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -21,23 +20,34 @@ import android.widget.TextView;
 import android.transition.TransitionManager;
 import android.transition.Fade;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.UUID;
-import java.util.Map;
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.Socket;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 public class DisplayActivity extends Activity
-    implements RfcommServer.Listener, CommandParser.Listener {
+    implements TransportServer.Listener, CommandParser.Listener {
   private static final String TAG = "DisplayActivity";
 
   /**
    * Used to store and retrieve a {@link ParcelFileDescriptor} instance that
-   * links the {@link BluetoothSocket} to our instance.
+   * links the {@link android.bluetooth.BluetoothSocket} to our instance.
    */
   public static final String PFD_EXTRA =
       "com.theonelab.navi.gypsum.DisplayActivity.PFD_EXTRA";
 
+  /**
+   * Optional string describing the {@link Transport} to listen on, as
+   * understood by {@link Transports#create}. Without it, we listen over TCP on
+   * an emulator and over Bluetooth everywhere else.
+   */
+  public static final String TRANSPORT_EXTRA =
+      "com.theonelab.navi.gypsum.DisplayActivity.TRANSPORT_EXTRA";
+
   /**
    * Key for the {@link DisplayView} bitmap to be saved before the Activity
    * dies.
@@ -61,7 +71,8 @@ public class DisplayActivity extends Activity
       public void onReceive(Context context, Intent intent) {
         final String action = intent.getAction();
 
-        if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
+        if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)
+            && transportDescription.equals(Transports.BLUETOOTH)) {
           final int state = intent.getIntExtra(
               BluetoothAdapter.EXTRA_STATE,
               BluetoothAdapter.ERROR);
@@ -69,12 +80,12 @@ public class DisplayActivity extends Activity
           switch (state) {
             case BluetoothAdapter.STATE_TURNING_OFF:
               Log.v(TAG, "Bluetooth turning off");
-              stopRfcommServer();
+              stopServer();
               break;
 
             case BluetoothAdapter.STATE_ON:
               Log.v(TAG, "Bluetooth on");
-              startRfcommServer();
+              startServer();
               break;
           }
         }
@@ -83,20 +94,36 @@ public class DisplayActivity extends Activity
 
   private static final long CONNECTED_FADE_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(2L);
 
-  private RfcommServer server;
+  /** Most clients that can be connected at once. */
+  private static final int MAX_CONNECTIONS = 4;
+
+  /** A connected client, with the parser reading its commands. */
+  private static final class Client {
+    final Closeable socket;
+    final CommandParser parser;
+    final Thread parserThread;
+
+    Client(Closeable socket, CommandParser parser) {
+      this.socket = socket;
+      this.parser = parser;
+      this.parserThread = new Thread(parser);
+    }
+  }
+
+  /** What {@link #server} listens on; see {@link #TRANSPORT_EXTRA}. */
+  private String transportDescription;
+
+  private TransportServer server;
   private Thread serverThread;
 
-  private CommandParser parser;
-  private Thread parserThread;
+  /** Every connected client. Guarded by itself. */
+  private final List<Client> connections = new ArrayList<Client>();
 
   private DisplayView display;
   private TextView connectedText;
   private TextView disconnectedText;
   private ViewGroup layout;
 
-  private BluetoothSocket btSocket;
-  private Socket tcpSocket;
-
   private Handler uiHandler;
 
   public DisplayActivity() {
@@ -109,6 +136,13 @@ public class DisplayActivity extends Activity
 
     uiHandler = new Handler(getMainLooper());
 
+    transportDescription = getIntent().getStringExtra(TRANSPORT_EXTRA);
+
+    if (transportDescription == null) {
+      transportDescription = AndroidHelper.isRunningOnEmulator(this)
+          ? Transports.TCP : Transports.BLUETOOTH;
+    }
+
     // Register for broadcasts on BluetoothAdapter state change
     IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
     registerReceiver(btReceiver, filter);
@@ -139,7 +173,7 @@ public class DisplayActivity extends Activity
     updateStatusText();
 
     // Start listening for connections
-    startRfcommServer();
+    startServer();
   }
 
   @Override
@@ -148,7 +182,7 @@ public class DisplayActivity extends Activity
     super.onPause();
     
     // User has navigated away -- we need to shutdown.
-    stopRfcommServer();
+    stopServer();
     stopParser();
   }
 
@@ -157,137 +191,151 @@ public class DisplayActivity extends Activity
     Log.i(TAG, "onDestroy");
     super.onDestroy();
 
-    if (btSocket != null) {
-      if (btSocket.isConnected()) {
+    synchronized (connections) {
+      for (Client connection : connections) {
         try {
-          btSocket.close();
+          connection.socket.close();
         } catch (IOException e) {
-          Log.e(TAG, "Caught IOException on btsocket close: " + e.getMessage());
+          Log.e(TAG, "Caught IOException on socket close: " + e.getMessage());
         }
       }
-
-      btSocket = null;
     }
 
     unregisterReceiver(btReceiver);
   }
 
-  private void startRfcommServer() {
-    server = new RfcommServer(this, this);
+  private void startServer() {
+    Transport transport = Transports.create(transportDescription);
+
+    if (transport == null) {
+      Log.e(TAG, "Not listening for clients.");
+      return;
+    }
+
+    server = new TransportServer(transport, this);
     serverThread = new Thread(server);
     serverThread.start();
   }
 
-  private void stopRfcommServer() {
+  private void stopServer() {
     if ((serverThread != null) && (serverThread.isAlive())) {
+      // Closing the transport is what wakes up a server waiting for a client.
+      server.stop();
       serverThread.interrupt();
       serverThread = null;
     }
   }
 
   private void stopParser() {
-    if ((parserThread != null) && (parserThread.isAlive())) {
-      parserThread.interrupt();
-      parserThread = null;
-    }
-  }
-
-  private void startParser() {
-    try {
-      if (btSocket != null) {
-        parser = new CommandParser(this, btSocket.getInputStream(), this);
-      } else if (tcpSocket != null) {
-        parser = new CommandParser(this, tcpSocket.getInputStream(), this);
+    synchronized (connections) {
+      for (Client connection : connections) {
+        if (connection.parserThread.isAlive()) {
+          connection.parserThread.interrupt();
+        }
       }
-    } catch (IOException e) {
-      Log.e(TAG, "Caught IOException when attempting to get input stream: " + e.getMessage());
-      return;
     }
+  }
 
-    parser.registerCommand(
-        "reset",
-        new Command() {
-          @Override
-          public void execute(Map<String, Value> params) {
-            display.clear();
-            parser.clearParams();
-          }
-        });
+  /**
+   * Starts a parser for a newly connected client, as a new session on the
+   * display.
+   */
+  private void startParser(Closeable socket, InputStream input, OutputStream output) {
+    CommandParser parser = new CommandParser(input, output, this);
 
     display.registerWithParser(parser);
+    parser.setPipeline(CommandRing.DEFAULT_CAPACITY, CommandRing.WaitStrategy.PARK);
+
+    Client connection = new Client(socket, parser);
+
+    synchronized (connections) {
+      connections.add(connection);
+    }
 
-    parserThread = new Thread(parser);
-    parserThread.start();
+    connection.parserThread.start();
   }
 
-  @Override
-  public void onSocketConnected(BluetoothSocket newSocket) {
-    // Reject multiple connections
-    if ((btSocket != null) && (btSocket.isConnected())) {
-      try {
-        newSocket.close();
-      } catch (IOException e) {
-        Log.e(TAG, "Caught IOException while attempting to close incoming socket: "
-              + e.getMessage());
+  /**
+   * @return false after closing the given socket if there are already as many
+   *         clients connected as we allow.
+   */
+  private boolean acceptConnection(Closeable socket) {
+    synchronized (connections) {
+      if (connections.size() < MAX_CONNECTIONS) {
+        return true;
       }
-
-      return;
     }
 
-    // TODO: Implement the protocol version handshake here.
+    Log.w(TAG, "Already have " + MAX_CONNECTIONS + " clients connected; rejecting another.");
 
-    btSocket = newSocket;
-    startParser();
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Caught IOException while attempting to close incoming socket: "
+            + e.getMessage());
+    }
 
-    updateStatusText();
+    return false;
   }
 
   @Override
-  public void onTcpSocketConnected(Socket newSocket) {
-    // Reject multiple connections
-    if ((tcpSocket != null) && (tcpSocket.isConnected())) {
+  public void onClientConnected(Transport.Connection connection) {
+    if (!acceptConnection(connection)) {
+      return;
+    }
+
+    // The parser sends the hello as soon as it starts, and the client's reply
+    // comes back as a (protocol ...) command.
+    try {
+      startParser(connection, connection.getInputStream(), connection.getOutputStream());
+    } catch (IOException e) {
+      Log.e(TAG, "Caught IOException when attempting to get socket streams: " + e.getMessage());
+
       try {
-        newSocket.close();
-      } catch (IOException e) {
-        Log.e(TAG, "Caught IOException while attempting to close incoming socket: "
-              + e.getMessage());
+        connection.close();
+      } catch (IOException closeException) {
+        Log.e(TAG, "Caught IOException while closing socket: " + closeException.getMessage());
       }
 
       return;
     }
 
-    // TODO: Implement the protocol version handshake here.
-
-    tcpSocket = newSocket;
-    startParser();
-
     updateStatusText();
   }
 
   @Override
   public void onParserStopped(CommandParser parser) {
-    if ((btSocket != null) && (btSocket.isConnected())) {
-      try {
-        btSocket.close();
-      } catch (IOException e) {
-        Log.e(TAG, "IOException while attempting to close socket: " + e.getMessage());
-      } finally {
-        btSocket = null;
+    display.closeSession(parser);
+
+    Client stopped = null;
+
+    synchronized (connections) {
+      for (int i = 0; i < connections.size(); i++) {
+        if (connections.get(i).parser == parser) {
+          stopped = connections.remove(i);
+          break;
+        }
       }
     }
 
-    if ((tcpSocket != null) && (tcpSocket.isConnected())) {
+    if (stopped != null) {
       try {
-        tcpSocket.close();
+        stopped.socket.close();
       } catch (IOException e) {
-      } finally {
-        tcpSocket = null;
+        Log.e(TAG, "IOException while attempting to close socket: " + e.getMessage());
       }
     }
 
     updateStatusText();
   }
 
+  /** @return true if any clients are connected. */
+  private boolean isConnected() {
+    synchronized (connections) {
+      return !connections.isEmpty();
+    }
+  }
+
   private Runnable hideConnectedTextTask = new Runnable() {
       @Override
       public void run() {
@@ -300,7 +348,7 @@ public class DisplayActivity extends Activity
       @Override
       public void run() {
         if (layout != null) {
-          if ((tcpSocket != null) || (btSocket != null)) {
+          if (isConnected()) {
             TransitionManager.beginDelayedTransition(layout, new Fade());
             connectedText.setVisibility(View.VISIBLE);
             uiHandler.postDelayed(hideConnectedTextTask, CONNECTED_FADE_DELAY_MILLIS);
@@ -0,0 +1,233 @@
+package com.theonelab.navi.gypsum;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.Log;
+
+/**
+ * A recorded frame of drawing commands, for {@link DisplayView}'s retained
+ * mode.
+ *
+ * Commands are stored as a stream of int opcodes and int operands, a parallel
+ * stream of float operands, and a small array of object references for text,
+ * typefaces and sprites. Recording into a list that has been {@link #reset}
+ * reuses its arrays, so once a list has grown to fit a typical frame,
+ * recording doesn't allocate.
+ *
+ * A list describes a whole frame: replaying it starts from a black canvas.
+ */
+final class DisplayList {
+  private static final String TAG = "DisplayList";
+
+  // Opcodes, followed by their int operands.
+  private static final int OP_LINE = 0;        // color
+  private static final int OP_BOX = 1;         // color, filled
+  private static final int OP_TEXT = 2;        // color, filled
+  private static final int OP_CLIP = 3;
+  private static final int OP_RESET_CLIP = 4;
+  private static final int OP_CLEAR = 5;
+  private static final int OP_BITMAP = 6;
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  /**
+   * Upper bound on the number of opcodes in a single frame, so a client that
+   * never commits can't grow a list without limit.
+   */
+  static final int MAX_OPS = 16 * 1024;
+
+  private int[] ints = new int[INITIAL_CAPACITY];
+  private int intCount;
+
+  private float[] floats = new float[INITIAL_CAPACITY];
+  private int floatCount;
+
+  private Object[] refs = new Object[INITIAL_CAPACITY / 4];
+  private int refCount;
+
+  private int opCount;
+  private boolean overflowed;
+
+  /** Empties the list, keeping its storage around for the next frame. */
+  public void reset() {
+    for (int i = 0; i < refCount; i++) {
+      refs[i] = null;
+    }
+
+    intCount = floatCount = refCount = opCount = 0;
+    overflowed = false;
+  }
+
+  /** @return the number of commands recorded since the last reset. */
+  public int size() {
+    return opCount;
+  }
+
+  public void line(float startX, float startY, float endX, float endY, int color) {
+    if (!begin(OP_LINE, 1, 4, 0)) return;
+
+    ints[intCount++] = color;
+    putRect(startX, startY, endX, endY);
+  }
+
+  public void box(float startX, float startY, float endX, float endY, int color,
+      boolean filled) {
+    if (!begin(OP_BOX, 2, 4, 0)) return;
+
+    ints[intCount++] = color;
+    ints[intCount++] = filled ? 1 : 0;
+    putRect(startX, startY, endX, endY);
+  }
+
+  public void text(String text, Typeface face, float size, float x, float y, int color,
+      boolean filled) {
+    if (!begin(OP_TEXT, 2, 3, 2)) return;
+
+    ints[intCount++] = color;
+    ints[intCount++] = filled ? 1 : 0;
+    floats[floatCount++] = x;
+    floats[floatCount++] = y;
+    floats[floatCount++] = size;
+    refs[refCount++] = text;
+    refs[refCount++] = face;
+  }
+
+  public void clip(float startX, float startY, float endX, float endY) {
+    if (!begin(OP_CLIP, 0, 4, 0)) return;
+
+    putRect(startX, startY, endX, endY);
+  }
+
+  public void resetClip() {
+    begin(OP_RESET_CLIP, 0, 0, 0);
+  }
+
+  public void bitmap(Bitmap bitmap, float x, float y) {
+    if (!begin(OP_BITMAP, 0, 2, 1)) return;
+
+    floats[floatCount++] = x;
+    floats[floatCount++] = y;
+    refs[refCount++] = bitmap;
+  }
+
+  /** Records clearing the frame to black and resetting the clip. */
+  public void clear() {
+    begin(OP_CLEAR, 0, 0, 0);
+  }
+
+  /**
+   * Draws the recorded frame onto the given canvas, leaving the canvas' state
+   * as it found it.
+   *
+   * @param paint scratch paint for drawing; its settings are clobbered.
+   */
+  public void replay(Canvas canvas, Paint paint) {
+    int base = canvas.save();
+    int i = 0;
+    int f = 0;
+    int r = 0;
+
+    paint.setAntiAlias(true);
+    canvas.drawRGB(0, 0, 0);
+
+    while (i < intCount) {
+      switch (ints[i++]) {
+        case OP_LINE:
+          paint.setColor(ints[i++]);
+          canvas.drawLine(floats[f], floats[f + 1], floats[f + 2], floats[f + 3], paint);
+          f += 4;
+          break;
+
+        case OP_BOX:
+          paint.setColor(ints[i++]);
+          paint.setStyle((ints[i++] != 0) ? Paint.Style.FILL_AND_STROKE : Paint.Style.STROKE);
+          canvas.drawRect(floats[f], floats[f + 1], floats[f + 2], floats[f + 3], paint);
+          f += 4;
+          break;
+
+        case OP_TEXT:
+          paint.setColor(ints[i++]);
+          paint.setStyle((ints[i++] != 0) ? Paint.Style.FILL_AND_STROKE : Paint.Style.STROKE);
+          paint.setTextSize(floats[f + 2]);
+          paint.setTypeface((Typeface) refs[r + 1]);
+          canvas.drawText((String) refs[r], floats[f], floats[f + 1], paint);
+          f += 3;
+          r += 2;
+          break;
+
+        case OP_CLIP:
+          canvas.restoreToCount(base);
+          base = canvas.save();
+          canvas.clipRect(floats[f], floats[f + 1], floats[f + 2], floats[f + 3]);
+          f += 4;
+          break;
+
+        case OP_RESET_CLIP:
+          canvas.restoreToCount(base);
+          base = canvas.save();
+          break;
+
+        case OP_CLEAR:
+          canvas.restoreToCount(base);
+          base = canvas.save();
+          canvas.drawRGB(0, 0, 0);
+          break;
+
+        case OP_BITMAP:
+          canvas.drawBitmap((Bitmap) refs[r], floats[f], floats[f + 1], null);
+          f += 2;
+          r += 1;
+          break;
+      }
+    }
+
+    canvas.restoreToCount(base);
+  }
+
+  /**
+   * Makes room for and writes an opcode.
+   *
+   * @return false if the list is full and the command should be dropped.
+   */
+  private boolean begin(int op, int intArgs, int floatArgs, int refArgs) {
+    if (opCount >= MAX_OPS) {
+      if (!overflowed) {
+        Log.e(TAG, "More than " + MAX_OPS + " commands in one frame; dropping the rest.");
+        overflowed = true;
+      }
+
+      return false;
+    }
+
+    if (intCount + 1 + intArgs > ints.length) {
+      int[] newInts = new int[ints.length * 2];
+      System.arraycopy(ints, 0, newInts, 0, intCount);
+      ints = newInts;
+    }
+
+    if (floatCount + floatArgs > floats.length) {
+      float[] newFloats = new float[floats.length * 2];
+      System.arraycopy(floats, 0, newFloats, 0, floatCount);
+      floats = newFloats;
+    }
+
+    if (refCount + refArgs > refs.length) {
+      Object[] newRefs = new Object[refs.length * 2];
+      System.arraycopy(refs, 0, newRefs, 0, refCount);
+      refs = newRefs;
+    }
+
+    ints[intCount++] = op;
+    opCount++;
+    return true;
+  }
+
+  private void putRect(float startX, float startY, float endX, float endY) {
+    floats[floatCount++] = startX;
+    floats[floatCount++] = startY;
+    floats[floatCount++] = endX;
+    floats[floatCount++] = endY;
+  }
+}
@@ -5,106 +5,308 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.graphics.Region;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
-import android.util.Pair;
 import android.util.Log;
 import android.view.View;
 import android.view.WindowManager;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DisplayView extends View {
   private static final String TAG = "DisplayView";
 
+  /** Most layers that can exist at once, including the base layer. */
+  private static final int MAX_LAYERS = 8;
+
+  /** Largest width or height of a layer, in pixels. */
+  private static final int MAX_LAYER_SIZE = 4096;
+
+  /**
+   * The layer underneath all others, which covers the whole view. Its buffers
+   * are replaced whenever the view changes size.
+   */
+  private final Layer base = new Layer(Layer.BASE, null, null, 0, 0, true);
+
+  /**
+   * Every layer, bottom-most first. Replaced as a whole by the parser thread
+   * whenever a layer is added or removed.
+   */
+  private volatile Layer[] layers = { base };
+
+  /**
+   * Held while running any session's command, so only one session at a time
+   * touches the drawing state below.
+   */
+  private final Object sessionLock = new Object();
+
+  /** Every connected session, by parser. Guarded by sessionLock. */
+  private final Map<CommandParser, Session> sessions = new HashMap<CommandParser, Session>();
+
+  /**
+   * The session whose drawing state is swapped in, or null. Guarded by
+   * sessionLock.
+   */
+  private Session session;
+
+  /**
+   * Layer the current session's drawing commands go to, or null if it doesn't
+   * have one yet. Only touched by the parser thread.
+   */
+  private Layer target = base;
+
+  /**
+   * Area of the view to redraw on the next commit, aside from layer damage.
+   * Only touched by the parser thread.
+   */
+  private final Rect invalid = new Rect();
+
+  // The swap chain the parser thread is drawing into, and its back buffer.
+  private SwapChain chain;
   private Bitmap framebuffer;
   private Canvas fbCanvas;
+
+  /** Set by the clip command and reapplied whenever the back buffer changes. */
+  private final RectF clip = new RectF();
+  private boolean clipped;
+
   private Paint paint;
+  private TypefaceCache typefaces;
+  private SpriteCache sprites = new SpriteCache(SpriteCache.DEFAULT_MAX_BYTES);
+  private TextRunCache textRuns = new TextRunCache(TextRunCache.DEFAULT_MAX_BYTES);
+
+  /** Paint for blitting text run masks, tinted with the text color. */
+  private final Paint maskPaint = new Paint();
+
+  /**
+   * True when drawing commands are recorded into a {@link DisplayList} and
+   * replayed by onDraw, rather than rasterized into the framebuffer as
+   * they're parsed.
+   */
+  private volatile boolean retained;
+
+  /** Display lists handed from the parser thread to the UI thread. */
+  private final TripleBuffer<DisplayList> displayLists =
+      new TripleBuffer<DisplayList>(new DisplayList(), new DisplayList());
+
+  /** The display list being recorded by the parser thread. */
+  private DisplayList recording = new DisplayList();
+
+  /** Paint used by the UI thread to replay display lists. */
+  private final Paint replayPaint = new Paint();
+
+  /**
+   * Number of frames committed since onDraw last ran, reported to the client
+   * as the queue depth in acks.
+   */
+  private final AtomicInteger pendingFrames = new AtomicInteger();
+
+  /** Pixels copied out by scroll and move, reused between calls. */
+  private int[] scratch;
+
+  /** Framebuffer region last copied into {@link #scratch}. */
+  private final Rect region = new Rect();
+
+  /** Scratch bounds for measuring text. */
+  private final Rect textBounds = new Rect();
+
+  // Area being redrawn by onDraw, and scratch rects for compositing layers.
+  // Only touched by the UI thread.
+  private final Rect dirty = new Rect();
+  private final Rect layerSrc = new Rect();
+  private final Rect layerDst = new Rect();
 
   public DisplayView(Context context) {
     super(context);
     Log.v(TAG, "DisplayView(Context)");
     paint = new Paint();
+    typefaces = new TypefaceCache(context.getAssets(), TypefaceCache.DEFAULT_SIZE);
   }
 
   public DisplayView(Context context, AttributeSet attrs) {
     super(context, attrs);
     Log.v(TAG, "DisplayView(Context, AttributeSet)");
     paint = new Paint();
+    typefaces = new TypefaceCache(context.getAssets(), TypefaceCache.DEFAULT_SIZE);
   }
 
   public DisplayView(Context context, AttributeSet attrs, int defStyleAttr) {
     super(context, attrs, defStyleAttr);
     Log.v(TAG, "DisplayView(Context, AttributeSet, int)");
     paint = new Paint();
+    typefaces = new TypefaceCache(context.getAssets(), TypefaceCache.DEFAULT_SIZE);
   }
 
   @Override
   public void onDetachedFromWindow() {
     super.onDetachedFromWindow();
     Log.v(TAG, "onDetachedFromWindow");
-    framebuffer = null;
-    fbCanvas = null;
+    Log.i(TAG, typefaces.toString());
+    Log.i(TAG, sprites.toString());
+    Log.i(TAG, textRuns.toString());
+    base.chain = null;
+  }
+
+  @Override
+  public void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+    super.onSizeChanged(width, height, oldWidth, oldHeight);
+    Log.v(TAG, "onSizeChanged(" + width + ", " + height + ")");
+
+    if ((width > 0) && (height > 0)) {
+      base.chain = new SwapChain(width, height);
+    }
   }
 
   @Override
   public void onDraw(Canvas canvas) {
     super.onDraw(canvas);
+    pendingFrames.set(0);
 
-    if (framebuffer == null) {
-      framebuffer = Bitmap.createBitmap(getWidth(), getHeight(),
-          Bitmap.Config.ARGB_8888);
-
-      if (framebuffer == null) {
-        Log.wtf(TAG, "Couldn't allocate framebuffer?!?!?!?!?!");
-      }
+    if (retained) {
+      displayLists.acquire().replay(canvas, replayPaint);
+      return;
+    }
 
-      fbCanvas = new Canvas(framebuffer);
+    // Only composite the area that was invalidated by the last commit.
+    if (!canvas.getClipBounds(dirty)) {
+      return;
     }
 
     canvas.drawRGB(0, 0, 0);
-    canvas.drawBitmap(framebuffer, 0, 0, null);
+
+    for (Layer layer : layers) {
+      SwapChain chain = layer.chain;
+
+      if ((chain == null) || !layer.visible) {
+        continue;
+      }
+
+      Bitmap front = chain.acquireFront();
+      int x = layer.x;
+      int y = layer.y;
+
+      layerDst.set(x, y, x + front.getWidth(), y + front.getHeight());
+
+      if (!layerDst.intersect(dirty)) {
+        continue;
+      }
+
+      layerSrc.set(layerDst);
+      layerSrc.offset(-x, -y);
+      canvas.drawBitmap(front, layerSrc, layerDst, null);
+    }
   }
 
   /**
    * Registers the various {@link Command} callbacks for this
    * {@link DisplayView} in the given {@link CommandParser}.
+   *
+   * The commands, and everything described here as belonging to the parser
+   * thread, run on whichever thread the parser runs commands on: its render
+   * thread, if it has a pipeline.
+   *
+   * Each parser gets its own {@link Session}. The first one registered, or the
+   * first since the last primary session closed, is the primary session.
+   * Commands from different sessions never run at the same time.
    */
   public void registerWithParser(CommandParser parser) {
+    Session owner;
+
+    synchronized (sessionLock) {
+      boolean primary = true;
+
+      for (Session other : sessions.values()) {
+        primary &= !other.primary;
+      }
+
+      owner = new Session(primary, primary ? base : null);
+      sessions.put(parser, owner);
+    }
+
+    parser.advertise("primary", owner.primary ? "t" : "nil");
+    // Before the first layout there's no size to tell the client about, and
+    // claiming 0x0 would be worse than saying nothing.
+    int width = getWidth();
+    int height = getHeight();
+
+    if ((width > 0) && (height > 0)) {
+      parser.advertise("width", Integer.toString(width));
+      parser.advertise("height", Integer.toString(height));
+    }
+
+    parser.advertise("layers", Integer.toString(MAX_LAYERS));
+    parser.advertise("max-frame-ops", Integer.toString(DisplayList.MAX_OPS));
+
+    parser.setFrameQueue(new CommandParser.FrameQueue() {
+        @Override
+        public int getQueueDepth() {
+          return pendingFrames.get();
+        }
+      });
+
     // (line :width num :color "#argb" :start coord :end coord)
-    parser.registerCommand("line", new Command() {
+    register(parser, owner, "line", new Command() {
+        @Override
+        public boolean isDrawing() {
+          return true;
+        }
+
         @Override
-        public void execute(Map<String, Value> params) {
-          if (fbCanvas != null) {
-            Pair<Float, Float> start = getCoordParam("start", params, ZERO_COORD);
-            Pair<Float, Float> end = getCoordParam("end", params, ZERO_COORD);
-            int color = getColorParam("color", params, Color.WHITE);
-            float width = getNumberParam("width", params, 1.0f);
+        public void execute(ParamTable params) {
+          if (retained || acquireCanvas()) {
+            float startX = getCoordX(SymbolTable.START, params);
+            float startY = getCoordY(SymbolTable.START, params);
+            float endX = getCoordX(SymbolTable.END, params);
+            float endY = getCoordY(SymbolTable.END, params);
+            int color = getColorParam(SymbolTable.COLOR, params, Color.WHITE);
+            float width = getNumberParam(SymbolTable.WIDTH, params, 1.0f);
+
+            if (retained) {
+              recording.line(startX, startY, endX, endY, color);
+              return;
+            }
 
             paint.setColor(color);
             paint.setAntiAlias(true);
 
             fbCanvas.drawLine(
-                start.first, start.second,
-                end.first, end.second,
+                startX, startY,
+                endX, endY,
                 paint);
+            addDamage(startX, startY, endX, endY, width / 2);
           }
         }
       });
 
     // (box :filled (truep) :start (coord) :end (coord))
-    parser.registerCommand("box", new Command() {
+    register(parser, owner, "box", new Command() {
+        @Override
+        public boolean isDrawing() {
+          return true;
+        }
+
         @Override
-        public void execute(Map<String, Value> params) {
-          if (fbCanvas != null) {
-            Pair<Float, Float> start = getCoordParam("start", params);
-            Pair<Float, Float> end = getCoordParam("end", params);
-            boolean isFilled = getBooleanParam("filled", params, false);
-            int color = getColorParam("color", params, Color.WHITE);
+        public void execute(ParamTable params) {
+          if (retained || acquireCanvas()) {
+            float startX = getCoordX(SymbolTable.START, params);
+            float startY = getCoordY(SymbolTable.START, params);
+            float endX = getCoordX(SymbolTable.END, params);
+            float endY = getCoordY(SymbolTable.END, params);
+            boolean isFilled = getBooleanParam(SymbolTable.FILLED, params, false);
+            int color = getColorParam(SymbolTable.COLOR, params, Color.WHITE);
+
+            if (retained) {
+              recording.box(startX, startY, endX, endY, color, isFilled);
+              return;
+            }
 
             paint.setColor(color);
             paint.setAntiAlias(true);
@@ -116,9 +318,10 @@ public class DisplayView extends View {
             }
 
             fbCanvas.drawRect(
-                start.first, start.second,
-                end.first, end.second,
+                startX, startY,
+                endX, endY,
                 paint);
+            addDamage(startX, startY, endX, endY, paint.getStrokeWidth() / 2);
           }
         }
         });
@@ -128,23 +331,33 @@ public class DisplayView extends View {
     //       :size num
     //       :color "#rgb"
     //       :text "text")
-    parser.registerCommand("text", new Command() {
+    register(parser, owner, "text", new Command() {
+        @Override
+        public boolean isDrawing() {
+          return true;
+        }
+
         @Override
-        public void execute(Map<String, Value> params) {
-          String font = getStringParam("font", params, "sans");
-          boolean bold = getBooleanParam("bold", params, false);
-          boolean italic = getBooleanParam("italic", params, false);
-          float size = getNumberParam("size", params, 10.0f);
-          int color = getColorParam("color", params, Color.WHITE);
-          boolean isFilled = getBooleanParam("filled", params, true);
-          String text = getStringParam("text", params, null);
-          Pair<Float, Float> start = getCoordParam("start", params);
+        public void execute(ParamTable params) {
+          String font = getStringParam(SymbolTable.FONT, params, "sans");
+          boolean bold = getBooleanParam(SymbolTable.BOLD, params, false);
+          boolean italic = getBooleanParam(SymbolTable.ITALIC, params, false);
+          float size = getNumberParam(SymbolTable.SIZE, params, 10.0f);
+          int color = getColorParam(SymbolTable.COLOR, params, Color.WHITE);
+          boolean isFilled = getBooleanParam(SymbolTable.FILLED, params, true);
+          String text = getStringParam(SymbolTable.TEXT, params, null);
+          float startX = getCoordX(SymbolTable.START, params);
+          float startY = getCoordY(SymbolTable.START, params);
 
           if (text == null) {
             Log.e(TAG + "/text", "No :text parameter specified.");
             return;
           }
 
+          if (!retained && !acquireCanvas()) {
+            return;
+          }
+
           int style = 0;
           if (bold) style |= Typeface.BOLD;
           if (italic) style |= Typeface.ITALIC;
@@ -155,30 +368,32 @@ public class DisplayView extends View {
             paint.setStyle(Paint.Style.STROKE);
           }
 
-          boolean loadFromAssets = true;
+          Typeface face = typefaces.get(font, style);
+
+          if (face == null) {
+            Log.e(TAG + "/text", "Couldn't open font " + font + ".");
+            return;
+          }
 
-          if (font.equals("sans") || font.equals("serif") || font.equals("monospace")) {
-            loadFromAssets = false;
+          if (retained) {
+            recording.text(text, face, size, startX, startY, color, isFilled);
+            return;
           }
 
-          Typeface face = null;
+          TextRunCache.Run run = textRuns.get(text, font, face, style, size, isFilled);
 
-          if (loadFromAssets) {
-            try {
-              face = Typeface.createFromAsset(getContext().getAssets(), font + ".ttf");
-            } catch (RuntimeException e) {
-              Log.w(TAG + "/text", "Couldn't create font from " + font + ".ttf: " + e.getMessage());
-              return;
-            }
-          } else {
-            face = Typeface.create(face, style);
-          }
+          if (run != null) {
+            // Unfiltered, a mask drawn at a fractional offset gains or loses a
+            // row or column of pixels, so snap it to the nearest whole pixel.
+            int left = Math.round(startX) + run.left;
+            int top = Math.round(startY) + run.top;
 
-          if (font == null) {
-            Log.e(TAG + "/text", "Couldn't open font " + font + ".");
+            maskPaint.setColor(color);
+            fbCanvas.drawBitmap(run.mask, left, top, maskPaint);
+            addDamage(left, top, left + run.mask.getWidth(), top + run.mask.getHeight(), 0);
             return;
           }
-          
+
           paint.setTypeface(face);
           paint.setTextSize(size);
           paint.setColor(color);
@@ -186,8 +401,103 @@ public class DisplayView extends View {
 
           fbCanvas.drawText(
               text,
-              start.first, start.second,
+              startX, startY,
               paint);
+
+          paint.getTextBounds(text, 0, text.length(), textBounds);
+          addDamage(
+              startX + textBounds.left, startY + textBounds.top,
+              startX + textBounds.right, startY + textBounds.bottom,
+              paint.getStrokeWidth() / 2);
+        }
+      });
+
+    // (preload-font :font "fontname"
+    //               :bold t|nil
+    //               :italic t|nil)
+    register(parser, owner, "preload-font", new Command() {
+        @Override
+        public void execute(ParamTable params) {
+          String font = getStringParam(SymbolTable.FONT, params, "sans");
+          boolean bold = getBooleanParam(SymbolTable.BOLD, params, false);
+          boolean italic = getBooleanParam(SymbolTable.ITALIC, params, false);
+
+          int style = 0;
+          if (bold) style |= Typeface.BOLD;
+          if (italic) style |= Typeface.ITALIC;
+
+          if (typefaces.get(font, style) == null) {
+            Log.e(TAG + "/preload-font", "Couldn't open font " + font + ".");
+          }
+        }
+      });
+
+    // (define-sprite :id 'name
+    //                :width num
+    //                :height num
+    //                :data "base64")
+    register(parser, owner, "define-sprite", new Command() {
+        @Override
+        public void execute(ParamTable params) {
+          String id = getNameParam(SymbolTable.ID, params, null);
+          int width = (int) getNumberParam(SymbolTable.WIDTH, params, 0.0f);
+          int height = (int) getNumberParam(SymbolTable.HEIGHT, params, 0.0f);
+          String data = getStringParam(SymbolTable.DATA, params, null);
+
+          if ((id == null) || (data == null)) {
+            Log.e(TAG + "/define-sprite", "Both :id and :data must be specified.");
+            return;
+          }
+
+          // A sprite never needs to be bigger than the view it's drawn on;
+          // before the first layout there's no view size to go by yet.
+          int maxWidth = (getWidth() > 0) ? getWidth() : SpriteCache.MAX_DIMENSION;
+          int maxHeight = (getHeight() > 0) ? getHeight() : SpriteCache.MAX_DIMENSION;
+
+          sprites.define(id, width, height, data, maxWidth, maxHeight);
+        }
+      });
+
+    // (sprite :id 'name
+    //         :start coord)
+    register(parser, owner, "sprite", new Command() {
+        @Override
+        public boolean isDrawing() {
+          return true;
+        }
+
+        @Override
+        public void execute(ParamTable params) {
+          String id = getNameParam(SymbolTable.ID, params, null);
+          float startX = getCoordX(SymbolTable.START, params);
+          float startY = getCoordY(SymbolTable.START, params);
+
+          if (id == null) {
+            Log.e(TAG + "/sprite", "No :id parameter specified.");
+            return;
+          }
+
+          Bitmap sprite = sprites.get(id);
+
+          if (sprite == null) {
+            Log.e(TAG + "/sprite", "No sprite " + id + " is defined.");
+            return;
+          }
+
+          if (retained) {
+            recording.bitmap(sprite, startX, startY);
+            return;
+          }
+
+          if (!acquireCanvas()) {
+            return;
+          }
+
+          fbCanvas.drawBitmap(sprite, startX, startY, null);
+          addDamage(
+              startX, startY,
+              startX + sprite.getWidth(), startY + sprite.getHeight(),
+              0);
         }
       });
 
@@ -195,33 +505,44 @@ public class DisplayView extends View {
     //         :end coord
     //         :dx number
     //         :dy number)
-    parser.registerCommand("scroll", new Command() {
+    register(parser, owner, "scroll", new Command() {
         @Override
-        public void execute(Map<String, Value> params) {
-          Pair<Float, Float> start = getCoordParam("start", params);
-          Pair<Float, Float> end = getCoordParam("end", params);
-          float dx = getNumberParam("dx", params, 0.0f);
-          float dy = getNumberParam("dy", params, 0.0f);
-          int bgcolor = getColorParam("bgcolor", params, Color.BLACK);
-
-          Bitmap subBitmap = Bitmap.createBitmap(
-              framebuffer,
-              (int) (float) start.first, (int) (float) start.second,
-              (int) (end.first - start.first), (int) (end.second - start.second));
+        public void execute(ParamTable params) {
+          float startX = getCoordX(SymbolTable.START, params);
+          float startY = getCoordY(SymbolTable.START, params);
+          float endX = getCoordX(SymbolTable.END, params);
+          float endY = getCoordY(SymbolTable.END, params);
+          float dx = getNumberParam(SymbolTable.DX, params, 0.0f);
+          float dy = getNumberParam(SymbolTable.DY, params, 0.0f);
+          int bgcolor = getColorParam(SymbolTable.BGCOLOR, params, Color.BLACK);
+
+          // These read back pixels, which a display list doesn't have.
+          if (retained) {
+            Log.w(TAG + "/scroll", "Not supported in retained mode.");
+            return;
+          }
+
+          if (!acquireCanvas() || !readRegion(startX, startY, endX, endY)) {
+            return;
+          }
 
           paint.setColor(bgcolor);
 
           fbCanvas.save();
           fbCanvas.clipRect(
-              start.first, start.second,
-              end.first, end.second,
+              startX, startY,
+              endX, endY,
               Region.Op.REPLACE);
           fbCanvas.drawPaint(paint);
           fbCanvas.drawBitmap(
-              subBitmap,
-              (int) (float) start.first - dx, (int) (float) start.second - dy,
+              scratch, 0, region.width(),
+              region.left - (int) dx, region.top - (int) dy,
+              region.width(), region.height(),
+              true /* hasAlpha */,
               null /* paint */);
           fbCanvas.restore();
+
+          addDamage(startX, startY, endX, endY, 0);
         }
       });
 
@@ -229,83 +550,605 @@ public class DisplayView extends View {
     //       :end coord
     //       :pos coord
     //       :bgcolor color)
-    parser.registerCommand("move", new Command() {
+    register(parser, owner, "move", new Command() {
         @Override
-        public void execute(Map<String, Value> params) {
-          Pair<Float, Float> start = getCoordParam("start", params);
-          Pair<Float, Float> end = getCoordParam("end", params);
-          Pair<Float, Float> pos = getCoordParam("pos", params);
-          int bgcolor = getColorParam("bgcolor", params, Color.BLACK);
+        public void execute(ParamTable params) {
+          float startX = getCoordX(SymbolTable.START, params);
+          float startY = getCoordY(SymbolTable.START, params);
+          float endX = getCoordX(SymbolTable.END, params);
+          float endY = getCoordY(SymbolTable.END, params);
+          float posX = getCoordX(SymbolTable.POS, params);
+          float posY = getCoordY(SymbolTable.POS, params);
+          int bgcolor = getColorParam(SymbolTable.BGCOLOR, params, Color.BLACK);
 
-          Bitmap subBitmap = Bitmap.createBitmap(
-              framebuffer,
-              (int) (float) start.first, (int) (float) start.second,
-              (int) (end.first - start.first), (int) (end.second - start.second));
+          // These read back pixels, which a display list doesn't have.
+          if (retained) {
+            Log.w(TAG + "/move", "Not supported in retained mode.");
+            return;
+          }
+
+          if (!acquireCanvas() || !readRegion(startX, startY, endX, endY)) {
+            return;
+          }
 
           paint.setColor(bgcolor);
 
           fbCanvas.save();
           fbCanvas.clipRect(
-              start.first, start.second,
-              end.first, end.second,
+              startX, startY,
+              endX, endY,
               Region.Op.REPLACE);
           fbCanvas.drawPaint(paint);
           fbCanvas.restore();
 
+          // If the source was clamped, shift the destination by the same amount.
           fbCanvas.drawBitmap(
-              subBitmap,
-              (int) (float) pos.first, (int) (float) pos.second,
+              scratch, 0, region.width(),
+              (int) posX + region.left - (int) startX,
+              (int) posY + region.top - (int) startY,
+              region.width(), region.height(),
+              true /* hasAlpha */,
               null /* paint */);
+
+          addDamage(startX, startY, endX, endY, 0);
+          addDamage(
+              posX + region.left - startX, posY + region.top - startY,
+              posX + region.right - startX, posY + region.bottom - startY,
+              0);
         }
       });
 
     // (clip :start coord
     //       :end coord)
-    parser.registerCommand("clip", new Command() {
+    register(parser, owner, "clip", new Command() {
         @Override
-        public void execute(Map<String, Value> params) {
-          Pair<Float, Float> start = getCoordParam("start", params);
-          Pair<Float, Float> end = getCoordParam("end", params);
+        public void execute(ParamTable params) {
+          float startX = getCoordX(SymbolTable.START, params);
+          float startY = getCoordY(SymbolTable.START, params);
+          float endX = getCoordX(SymbolTable.END, params);
+          float endY = getCoordY(SymbolTable.END, params);
 
-          fbCanvas.clipRect(
-              start.first, start.second,
-              end.first, end.second,
-              Region.Op.REPLACE);
+          clip.set(startX, startY, endX, endY);
+          clipped = true;
+
+          if (retained) {
+            recording.clip(startX, startY, endX, endY);
+          } else if (acquireCanvas()) {
+            applyClip();
+          }
         }
       });
 
     // (reset-clip)
-    parser.registerCommand("reset-clip", new Command() {
+    register(parser, owner, "reset-clip", new Command() {
         @Override
-        public void execute(Map<String, Value> params) {
-          fbCanvas.clipRect(
-              0, 0,
-              framebuffer.getWidth(), framebuffer.getHeight(),
-              Region.Op.REPLACE);
+        public void execute(ParamTable params) {
+          clipped = false;
+
+          if (retained) {
+            recording.resetClip();
+          } else if (acquireCanvas()) {
+            applyClip();
+          }
         }
       });
 
     // (commit)
-    parser.registerCommand("commit", new Command() {
+    register(parser, owner, "commit", new Command() {
+        @Override
+        public void execute(ParamTable params) {
+          if (retained) {
+            recording = displayLists.publish(recording);
+            recording.reset();
+            pendingFrames.incrementAndGet();
+            postInvalidate();
+            return;
+          }
+
+          for (Layer layer : layers) {
+            SwapChain layerChain = layer.chain;
+
+            // Other sessions' layers may be partway through a frame.
+            if (!owns(layer)) {
+              continue;
+            }
+
+            if ((layerChain != null)
+                && layer.damage.intersect(0, 0, layerChain.getWidth(), layerChain.getHeight())) {
+              layerChain.publish(layer.damage);
+
+              if (layer.visible) {
+                layer.damage.offset(layer.x, layer.y);
+                invalid.union(layer.damage);
+              }
+            }
+
+            layer.damage.setEmpty();
+
+            if (layer.isPlacementChanged()) {
+              if (layer.getBounds(region)) {
+                invalid.union(region);
+              }
+
+              layer.x = layer.nextX;
+              layer.y = layer.nextY;
+              layer.visible = layer.nextVisible;
+
+              if (layer.getBounds(region)) {
+                invalid.union(region);
+              }
+            }
+          }
+
+          // The target's back buffer changed if anything was drawn into it.
+          if (acquireCanvas()) {
+            attachBackBuffer();
+          }
+
+          if (!invalid.isEmpty()) {
+            pendingFrames.incrementAndGet();
+            postInvalidate(invalid.left, invalid.top, invalid.right, invalid.bottom);
+            invalid.setEmpty();
+          }
+        }
+      });
+
+    // (layer :name 'name
+    //        :start coord
+    //        :end coord)
+    register(parser, owner, "layer", new Command() {
+        @Override
+        public void execute(ParamTable params) {
+          String name = getNameParam(SymbolTable.NAME, params, null);
+          int left = (int) getCoordX(SymbolTable.START, params);
+          int top = (int) getCoordY(SymbolTable.START, params);
+          int width = (int) getCoordX(SymbolTable.END, params) - left;
+          int height = (int) getCoordY(SymbolTable.END, params) - top;
+
+          if (name == null) {
+            Log.e(TAG + "/layer", "No :name parameter specified.");
+            return;
+          }
+
+          if (name.equals(Layer.BASE)) {
+            Log.e(TAG + "/layer", "The base layer can't be redefined.");
+            return;
+          }
+
+          if ((width <= 0) || (height <= 0)
+              || (width > MAX_LAYER_SIZE) || (height > MAX_LAYER_SIZE)) {
+            Log.e(TAG + "/layer", "Invalid size " + width + "x" + height
+                  + " for layer " + name + ".");
+            return;
+          }
+
+          defineLayer(name, left, top, width, height);
+        }
+      });
+
+    // (select-layer :name 'name)
+    register(parser, owner, "select-layer", new Command() {
+        @Override
+        public void execute(ParamTable params) {
+          Layer layer = findLayer(getNameParam(SymbolTable.NAME, params, null), "select-layer");
+
+          if (layer != null) {
+            target = layer;
+            acquireCanvas();
+          }
+        }
+      });
+
+    // (layer-visible :name 'name
+    //                :visible t|nil)
+    register(parser, owner, "layer-visible", new Command() {
+        @Override
+        public void execute(ParamTable params) {
+          Layer layer = findLayer(getNameParam(SymbolTable.NAME, params, null), "layer-visible");
+
+          if (layer != null) {
+            layer.nextVisible = getBooleanParam(SymbolTable.VISIBLE, params, true);
+          }
+        }
+      });
+
+    // (layer-move :name 'name
+    //             :pos coord)
+    register(parser, owner, "layer-move", new Command() {
+        @Override
+        public void execute(ParamTable params) {
+          Layer layer = findLayer(getNameParam(SymbolTable.NAME, params, null), "layer-move");
+
+          if (layer != null) {
+            layer.nextX = (int) getCoordX(SymbolTable.POS, params);
+            layer.nextY = (int) getCoordY(SymbolTable.POS, params);
+          }
+        }
+      });
+
+    // (display-mode :mode 'immediate|'retained)
+    register(parser, owner, "display-mode", new Command() {
+        @Override
+        public void execute(ParamTable params) {
+          if (!session.primary) {
+            Log.e(TAG + "/display-mode", "Only the primary session can change display modes.");
+            return;
+          }
+
+          String mode = getSymbolParam(SymbolTable.MODE, params, null, "immediate", "retained");
+
+          if (mode == null) {
+            Log.e(TAG + "/display-mode", "Expected :mode 'immediate or 'retained.");
+            return;
+          }
+
+          setRetained(mode.equals("retained"));
+        }
+      });
+
+    // (reset)
+    register(parser, owner, "reset", new Command() {
         @Override
-        public void execute(Map<String, Value> params) {
-          postInvalidate();
+        public void execute(ParamTable params) {
+          clear();
         }
       });
   }
 
+  /**
+   * Registers a command that runs on behalf of the given session, holding the
+   * session lock with the session's drawing state swapped in.
+   */
+  private void register(CommandParser parser, final Session owner, String name,
+      final Command command) {
+    parser.registerCommand(name, new Command() {
+        @Override
+        public boolean isDrawing() {
+          return command.isDrawing();
+        }
+
+        @Override
+        public void execute(ParamTable params) {
+          synchronized (sessionLock) {
+            // Retained mode records a single frame for the whole view, which
+            // belongs to the primary session.
+            if (retained && !owner.primary) {
+              if (!owner.warnedRetained) {
+                Log.w(TAG, "Ignoring a secondary session's commands in retained mode.");
+                owner.warnedRetained = true;
+              }
+
+              return;
+            }
+
+            enter(owner);
+            command.execute(params);
+          }
+        }
+      });
+  }
+
+  /**
+   * Removes the session registered with the given parser, along with every
+   * layer it defined. Call once the parser has stopped.
+   */
+  public void closeSession(CommandParser parser) {
+    synchronized (sessionLock) {
+      Session closed = sessions.remove(parser);
+
+      if (closed == null) {
+        return;
+      }
+
+      enter(closed);
+      removeLayers();
+      target = null;
+
+      if (!invalid.isEmpty()) {
+        postInvalidate(invalid.left, invalid.top, invalid.right, invalid.bottom);
+        invalid.setEmpty();
+      }
+    }
+  }
+
+  /**
+   * Swaps the given session's drawing state in, saving the current session's.
+   * Must be called with the session lock held.
+   */
+  private void enter(Session next) {
+    if (next == session) {
+      return;
+    }
+
+    if (session != null) {
+      session.target = target;
+      session.clip.set(clip);
+      session.clipped = clipped;
+    }
+
+    session = next;
+    target = next.target;
+    clip.set(next.clip);
+    clipped = next.clipped;
+
+    // Make acquireCanvas attach to the new target and apply the new clip.
+    chain = null;
+    framebuffer = null;
+    fbCanvas = null;
+  }
+
+  /** @return true if the current session can use the given layer. */
+  private boolean owns(Layer layer) {
+    return (layer.owner == session) || ((layer.owner == null) && session.primary);
+  }
+
+  /**
+   * Removes every layer the current session defined, marking where they were
+   * for redrawing. The base layer is never removed.
+   */
+  private void removeLayers() {
+    Layer[] current = layers;
+    Layer[] kept = new Layer[current.length];
+    int count = 0;
+
+    for (Layer layer : current) {
+      if ((layer != base) && owns(layer)) {
+        if (layer.getBounds(region)) {
+          invalid.union(region);
+        }
+      } else {
+        kept[count++] = layer;
+      }
+    }
+
+    if (count < current.length) {
+      Layer[] updated = new Layer[count];
+      System.arraycopy(kept, 0, updated, 0, count);
+      layers = updated;
+    }
+  }
+
+  /**
+   * Switches between rasterizing commands into the framebuffer as they're
+   * parsed, and recording each frame into a display list that's replayed on
+   * the UI thread. Must be called from the parser thread.
+   *
+   * In retained mode each frame is drawn from scratch by the commands between
+   * two commits, scroll and move aren't available, and layers aren't
+   * composited.
+   */
+  public void setRetained(boolean retained) {
+    if (retained == this.retained) {
+      return;
+    }
+
+    recording.reset();
+    this.retained = retained;
+    postInvalidate();
+  }
+
+  /**
+   * Makes sure the parser thread is drawing into the target layer's current
+   * swap chain, switching over if the target has changed or the view has
+   * been resized.
+   *
+   * @return false if there's nothing to draw into yet.
+   */
+  private boolean acquireCanvas() {
+    SwapChain current = (target != null) ? target.chain : null;
+
+    if (current != chain) {
+      chain = current;
+
+      if (chain == null) {
+        framebuffer = null;
+        fbCanvas = null;
+        return false;
+      }
+
+      attachBackBuffer();
+    }
+
+    return chain != null;
+  }
+
+  /**
+   * @return the layer with the given name, or null after logging an error on
+   *         behalf of the given command if there's no such layer.
+   */
+  private Layer findLayer(String name, String command) {
+    if (name == null) {
+      Log.e(TAG + "/" + command, "No :name parameter specified.");
+      return null;
+    }
+
+    for (Layer layer : layers) {
+      if (layer.name.equals(name) && owns(layer)) {
+        return layer;
+      }
+    }
+
+    Log.e(TAG + "/" + command, "No layer named " + name + " in this session.");
+    return null;
+  }
+
+  /**
+   * Creates a layer, or replaces the existing layer with the same name if it
+   * has a different size. A new layer is blank and appears on the next
+   * commit, above every existing layer.
+   */
+  private void defineLayer(String name, int x, int y, int width, int height) {
+    Layer[] current = layers;
+    int index = current.length;
+
+    for (int i = 0; i < current.length; i++) {
+      if (current[i].name.equals(name)) {
+        index = i;
+        break;
+      }
+    }
+
+    if (index < current.length) {
+      Layer old = current[index];
+      SwapChain oldChain = old.chain;
+
+      if (!owns(old)) {
+        Log.e(TAG + "/layer", "Layer " + name + " belongs to another session.");
+        return;
+      }
+
+      if ((oldChain.getWidth() == width) && (oldChain.getHeight() == height)) {
+        old.nextX = x;
+        old.nextY = y;
+        return;
+      }
+
+      if (old.getBounds(region)) {
+        invalid.union(region);
+      }
+    } else if (current.length >= MAX_LAYERS) {
+      Log.e(TAG + "/layer", "Can't have more than " + MAX_LAYERS + " layers.");
+      return;
+    }
+
+    Layer layer = new Layer(name, session, new SwapChain(width, height), x, y, false);
+    Layer[] updated = new Layer[Math.max(current.length, index + 1)];
+
+    System.arraycopy(current, 0, updated, 0, current.length);
+    updated[index] = layer;
+
+    if ((index < current.length) && (target == current[index])) {
+      target = layer;
+    }
+
+    layers = updated;
+  }
+
+  /** Starts drawing into the swap chain's current back buffer. */
+  private void attachBackBuffer() {
+    framebuffer = chain.getBackBitmap();
+    fbCanvas = chain.getBackCanvas();
+    applyClip();
+  }
+
+  private void applyClip() {
+    if (clipped) {
+      fbCanvas.clipRect(
+          clip.left, clip.top,
+          clip.right, clip.bottom,
+          Region.Op.REPLACE);
+    } else {
+      fbCanvas.clipRect(
+          0, 0,
+          framebuffer.getWidth(), framebuffer.getHeight(),
+          Region.Op.REPLACE);
+    }
+  }
+
+  /**
+   * Adds the rectangle spanned by the two given corners, grown by outset plus
+   * a pixel for antialiasing, to the area to redraw on the next commit.
+   */
+  private void addDamage(float x1, float y1, float x2, float y2, float outset) {
+    outset += 1;
+    target.damage.union(
+        (int) Math.floor(Math.min(x1, x2) - outset),
+        (int) Math.floor(Math.min(y1, y2) - outset),
+        (int) Math.ceil(Math.max(x1, x2) + outset),
+        (int) Math.ceil(Math.max(y1, y2) + outset));
+  }
+
+  /**
+   * Clamps the given region to the framebuffer and copies its pixels into
+   * {@link #scratch}, growing it only when a larger region than ever before is
+   * requested. The clamped bounds are left in {@link #region}.
+   *
+   * Copying out first means the source and destination of a scroll or move can
+   * overlap freely.
+   *
+   * @return false if the region is empty or entirely off the framebuffer.
+   */
+  private boolean readRegion(float startX, float startY, float endX, float endY) {
+    region.set((int) startX, (int) startY, (int) endX, (int) endY);
+
+    if (region.isEmpty()
+        || !region.intersect(0, 0, framebuffer.getWidth(), framebuffer.getHeight())) {
+      return false;
+    }
+
+    int size = region.width() * region.height();
+
+    if ((scratch == null) || (scratch.length < size)) {
+      scratch = new int[size];
+    }
+
+    framebuffer.getPixels(
+        scratch, 0, region.width(),
+        region.left, region.top,
+        region.width(), region.height());
+    return true;
+  }
+
+  /**
+   * Replaces the typeface cache with an empty one holding at most the given
+   * number of typefaces.
+   */
+  public void setTypefaceCacheSize(int maxSize) {
+    typefaces = new TypefaceCache(getContext().getAssets(), maxSize);
+  }
+
+  /**
+   * Replaces the sprite cache with an empty one holding at most the given
+   * number of bytes of pixel data.
+   */
+  public void setSpriteCacheSize(int maxBytes) {
+    sprites = new SpriteCache(maxBytes);
+  }
+
+  /**
+   * Replaces the text run cache with an empty one holding at most the given
+   * number of bytes of rasterized text.
+   */
+  public void setTextRunCacheSize(int maxBytes) {
+    textRuns = new TextRunCache(maxBytes);
+  }
+
+  /**
+   * @return a copy of the frame currently on screen. Must be called from the
+   *         UI thread.
+   */
   public Bitmap getFrameBuffer() {
-    if (framebuffer != null) {
-      return Bitmap.createBitmap(framebuffer);
+    SwapChain current = base.chain;
+
+    if (current != null) {
+      return Bitmap.createBitmap(current.acquireFront());
     }
 
     return null;
   }
 
+  /**
+   * Removes every layer the current session defined and resets its clip. For
+   * the primary session, also clears the base layer to black. Must be called
+   * from the parser thread.
+   */
   public void clear() {
-    if (fbCanvas != null) {
-      fbCanvas = new Canvas(framebuffer);
+    clipped = false;
+    removeLayers();
+
+    if (!session.primary) {
+      target = null;
+      return;
+    }
+
+    target = base;
+
+    if (retained) {
+      recording.clear();
+    } else if (acquireCanvas()) {
+      applyClip();
       fbCanvas.drawARGB(255, 0, 0, 0);
+      base.damage.set(0, 0, framebuffer.getWidth(), framebuffer.getHeight());
     }
   }
 }
@@ -0,0 +1,88 @@
+package com.theonelab.navi.gypsum;
+
+/**
+ * Logging for the parts of Gypsum that don't need Android -- the parser, its
+ * readers and the transports -- so they also run on a plain JVM.
+ *
+ * On Android, messages go to {@link android.util.Log} as usual, through
+ * {@link AndroidLogSink}. Anywhere else they're written to System.err in
+ * logcat's brief format, leaving out verbose and debug messages. Either can be
+ * replaced with {@link #setSink}.
+ */
+public final class GypsumLog {
+  // Same priorities as android.util.Log.
+  public static final int VERBOSE = 2;
+  public static final int DEBUG = 3;
+  public static final int INFO = 4;
+  public static final int WARN = 5;
+  public static final int ERROR = 6;
+  public static final int ASSERT = 7;
+
+  /** Where log messages end up. */
+  public interface Sink {
+    public void println(int priority, String tag, String message);
+  }
+
+  /** Writes messages of at least {@link #INFO} priority to System.err. */
+  private static final Sink STDERR = new Sink() {
+      @Override
+      public void println(int priority, String tag, String message) {
+        if (priority >= INFO) {
+          System.err.println("VDIWEA".charAt(Math.min(priority, ASSERT) - VERBOSE)
+              + "/" + tag + ": " + message);
+        }
+      }
+    };
+
+  private static volatile Sink sink = defaultSink();
+
+  private GypsumLog() {
+  }
+
+  /** Sends every message to newSink from now on. */
+  public static void setSink(Sink newSink) {
+    sink = newSink;
+  }
+
+  public static void v(String tag, String message) {
+    sink.println(VERBOSE, tag, message);
+  }
+
+  public static void d(String tag, String message) {
+    sink.println(DEBUG, tag, message);
+  }
+
+  public static void i(String tag, String message) {
+    sink.println(INFO, tag, message);
+  }
+
+  public static void w(String tag, String message) {
+    sink.println(WARN, tag, message);
+  }
+
+  public static void e(String tag, String message) {
+    sink.println(ERROR, tag, message);
+  }
+
+  /** Logs something that should never happen. */
+  public static void wtf(String tag, String message) {
+    sink.println(ASSERT, tag, message);
+  }
+
+  /**
+   * @return an {@link AndroidLogSink} when running on Android, or
+   *         {@link #STDERR} otherwise. The Android sink is looked up by name so
+   *         that this class compiles without Android.
+   */
+  private static Sink defaultSink() {
+    try {
+      Class.forName("android.util.Log");
+      return (Sink) Class.forName("com.theonelab.navi.gypsum.AndroidLogSink")
+          .getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      return STDERR;
+    } catch (LinkageError e) {
+      return STDERR;
+    }
+  }
+}
@@ -13,6 +13,21 @@ public interface GypsumProtocol {
   /** The version number for the Gypsum protocol that Gypsum the application implements. */
   public static final int PROTOCOL_VERSION = 1;
 
+  /** Version of the binary encoding selected by <code>(protocol :encoding 'binary)</code>. */
+  public static final int BINARY_VERSION = 1;
+
+  /** Binary frame opcode that binds a wire ID to a symbol name. */
+  public static final int BINARY_DEFINE = 0;
+
+  // Binary encoding parameter value types.
+  public static final int BINARY_NIL = 0;
+  public static final int BINARY_T = 1;
+  public static final int BINARY_NUMBER = 2;
+  public static final int BINARY_COORDINATE = 3;
+  public static final int BINARY_STRING = 4;
+  public static final int BINARY_SYMBOL = 5;
+  public static final int BINARY_COLOR = 6;
+
   /** Human-readable service name used in the RFCOMM SDP record. */
   public static final String BT_SERVICE_NAME = "Gypsum";
 
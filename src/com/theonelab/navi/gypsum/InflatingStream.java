@@ -0,0 +1,174 @@
+package com.theonelab.navi.gypsum;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An {@link InputStream} that inflates a zlib-wrapped DEFLATE stream read from
+ * another stream, for <code>(protocol :compression 'deflate)</code>.
+ *
+ * Unlike {@link java.util.zip.InflaterInputStream}, a read returns as soon as
+ * any inflated bytes are available. A client that ends each frame with a sync
+ * flush (zlib's <code>Z_SYNC_FLUSH</code>) therefore has every frame decoded as
+ * soon as it arrives, rather than once the next one fills up a buffer.
+ *
+ * Once the client finishes the DEFLATE stream, whatever follows it is passed
+ * through uncompressed, and {@link #start} can begin another DEFLATE stream
+ * later on. The same {@link Inflater} and input buffer are reused for every
+ * stream.
+ *
+ * Not thread safe, apart from the byte counters.
+ */
+final class InflatingStream extends InputStream {
+  private static final String TAG = "InflatingStream";
+
+  private static final int BUFFER_SIZE = 4096;
+
+  private final InputStream stream;
+  private final Inflater inflater = new Inflater();
+
+  /** Compressed input. Once inflating ends, bytes not yet returned remain. */
+  private byte[] input = new byte[BUFFER_SIZE];
+  private int inputStart;
+  private int inputEnd;
+
+  private boolean inflating;
+
+  private final byte[] single = new byte[1];
+
+  private volatile long bytesIn;
+  private volatile long bytesOut;
+
+  /** Creates a stream that passes stream through until {@link #start} is called. */
+  public InflatingStream(InputStream stream) {
+    this.stream = stream;
+  }
+
+  /**
+   * Begins inflating a new DEFLATE stream.
+   *
+   * @param pending bytes already read from this stream that should be
+   *        inflated before anything else, such as whatever followed the form
+   *        that turned on compression.
+   */
+  public void start(byte[] pending) {
+    if (inflating) {
+      GypsumLog.w(TAG, "Already inflating.");
+      return;
+    }
+
+    int leftover = inputEnd - inputStart;
+    byte[] newInput = input;
+
+    if (pending.length + leftover > input.length) {
+      newInput = new byte[pending.length + leftover];
+    }
+
+    System.arraycopy(input, inputStart, newInput, pending.length, leftover);
+    System.arraycopy(pending, 0, newInput, 0, pending.length);
+    input = newInput;
+    inputStart = 0;
+    inputEnd = pending.length + leftover;
+
+    inflater.reset();
+    inflater.setInput(input, 0, inputEnd);
+    inflating = true;
+  }
+
+  /** @return true between {@link #start} and the end of the DEFLATE stream. */
+  public boolean isInflating() {
+    return inflating;
+  }
+
+  /** @return the total number of compressed bytes inflated. */
+  public long getBytesIn() {
+    return bytesIn;
+  }
+
+  /** @return the total number of bytes inflated compressed input produced. */
+  public long getBytesOut() {
+    return bytesOut;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] buf, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+
+    if (!inflating) {
+      if (inputStart < inputEnd) {
+        int count = Math.min(length, inputEnd - inputStart);
+        System.arraycopy(input, inputStart, buf, offset, count);
+        inputStart += count;
+        return count;
+      }
+
+      return stream.read(buf, offset, length);
+    }
+
+    while (true) {
+      int remaining = inflater.getRemaining();
+      int count;
+
+      try {
+        count = inflater.inflate(buf, offset, length);
+      } catch (DataFormatException e) {
+        throw new IOException("Malformed DEFLATE stream: " + e.getMessage());
+      }
+
+      bytesIn += remaining - inflater.getRemaining();
+
+      if (count > 0) {
+        bytesOut += count;
+        return count;
+      }
+
+      if (inflater.finished()) {
+        GypsumLog.i(TAG, "End of DEFLATE stream; expecting uncompressed input. " + this);
+        inputStart = inputEnd - inflater.getRemaining();
+        inflating = false;
+        return read(buf, offset, length);
+      }
+
+      if (inflater.needsDictionary()) {
+        throw new IOException("DEFLATE streams with preset dictionaries aren't supported.");
+      }
+
+      if (inflater.needsInput()) {
+        int read = stream.read(input, 0, input.length);
+
+        if (read < 0) {
+          return -1;
+        }
+
+        inflater.setInput(input, 0, read);
+        inputStart = 0;
+        inputEnd = read;
+      }
+    }
+  }
+
+  /** Closes the underlying stream and frees the inflater. */
+  @Override
+  public void close() throws IOException {
+    inflater.end();
+    stream.close();
+  }
+
+  @Override
+  public String toString() {
+    long in = bytesIn;
+    long out = bytesOut;
+
+    return "InflatingStream[in=" + in + " bytes, out=" + out + " bytes, ratio="
+        + ((in > 0) ? String.format("%.1f", (double) out / in) : "-") + "]";
+  }
+}
@@ -0,0 +1,75 @@
+package com.theonelab.navi.gypsum;
+
+import android.graphics.Rect;
+
+/**
+ * A named, separately buffered drawing surface composited by
+ * {@link DisplayView}.
+ *
+ * Changes to a layer's position and visibility are staged by the parser
+ * thread and only take effect on the next commit, together with whatever was
+ * drawn into the layer, so a panel never shows up in its new spot with its
+ * old contents.
+ */
+final class Layer {
+  /** Name of the layer underneath all others, which fills the whole view. */
+  public static final String BASE = "base";
+
+  public final String name;
+
+  /** The session that defined the layer, or null for the base layer. */
+  final Session owner;
+
+  /**
+   * The layer's buffers. Only the base layer's are ever replaced, by the UI
+   * thread when the view is resized.
+   */
+  volatile SwapChain chain;
+
+  // Published to the UI thread on commit.
+  volatile int x;
+  volatile int y;
+  volatile boolean visible;
+
+  // Parser thread state.
+  final Rect damage = new Rect();
+  int nextX;
+  int nextY;
+  boolean nextVisible;
+
+  /**
+   * @param visible whether the layer starts out visible. A layer created
+   *        hidden is shown on the next commit.
+   */
+  Layer(String name, Session owner, SwapChain chain, int x, int y, boolean visible) {
+    this.name = name;
+    this.owner = owner;
+    this.chain = chain;
+    this.x = nextX = x;
+    this.y = nextY = y;
+    this.visible = visible;
+    this.nextVisible = true;
+  }
+
+  /** @return true if the layer has been moved, shown or hidden since the last commit. */
+  boolean isPlacementChanged() {
+    return (nextX != x) || (nextY != y) || (nextVisible != visible);
+  }
+
+  /**
+   * Sets rect to the layer's bounds in view coordinates, as currently
+   * composited.
+   *
+   * @return false if the layer has no buffers.
+   */
+  boolean getBounds(Rect rect) {
+    SwapChain current = chain;
+
+    if (current == null) {
+      return false;
+    }
+
+    rect.set(x, y, x + current.getWidth(), y + current.getHeight());
+    return true;
+  }
+}
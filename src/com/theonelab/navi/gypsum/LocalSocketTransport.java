@@ -0,0 +1,103 @@
+package com.theonelab.navi.gypsum;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Accepts clients over a Unix-domain socket in the abstract namespace, for
+ * clients running on the same device, or forwarded to it with
+ * <code>adb forward tcp:8888 localabstract:gypsum</code>.
+ */
+public final class LocalSocketTransport implements Transport {
+  private static final String TAG = "LocalSocketTransport";
+
+  /** Socket name used when none is given. */
+  public static final String DEFAULT_NAME = "gypsum";
+
+  private final String name;
+
+  private LocalServerSocket serverSocket;
+  private volatile boolean closed;
+
+  public LocalSocketTransport(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public void listen() throws IOException {
+    serverSocket = new LocalServerSocket(name);
+  }
+
+  @Override
+  public Connection accept() throws IOException {
+    final LocalSocket socket;
+
+    try {
+      socket = serverSocket.accept();
+    } catch (IOException e) {
+      if (closed) {
+        return null;
+      }
+
+      throw e;
+    }
+
+    if (closed) {
+      // Most likely the connection close() made to wake us up.
+      socket.close();
+      return null;
+    }
+
+    return new Connection() {
+        @Override
+        public InputStream getInputStream() throws IOException {
+          return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+          return socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+          socket.close();
+        }
+      };
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed || (serverSocket == null)) {
+      closed = true;
+      return;
+    }
+
+    closed = true;
+
+    // Closing a LocalServerSocket doesn't wake up a thread blocked in accept,
+    // so connect to it once first.
+    LocalSocket wakeup = new LocalSocket();
+
+    try {
+      wakeup.connect(new LocalSocketAddress(name));
+    } catch (IOException e) {
+      Log.w(TAG, "Couldn't connect to " + this + " to stop it: " + e.getMessage());
+    } finally {
+      wakeup.close();
+    }
+
+    serverSocket.close();
+  }
+
+  @Override
+  public String toString() {
+    return "LocalSocketTransport[@" + name + "]";
+  }
+}
@@ -0,0 +1,553 @@
+package com.theonelab.navi.gypsum;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCP server that accepts and reads from any number of clients on a single
+ * thread, using a {@link Selector}.
+ *
+ * Each read lands in a buffer from a shared pool, and that same buffer is
+ * handed to the client's parser thread through {@link Client#getInputStream}.
+ * The parser's reader then copies out of it into its own buffer, so each byte
+ * is copied once on its way to the parser. That copy stays: forms can span
+ * several reads, and the reader frames and tokenizes them in place in one
+ * contiguous array, which a pooled buffer handed back after each read can't
+ * be.
+ *
+ * The pooled buffers are heap buffers rather than direct ones. The reader
+ * needs bytes in a byte array, and Android's socket channels read straight
+ * into the array backing a heap buffer, so a direct buffer would only add a
+ * second copy.
+ *
+ * When a client's parser falls behind, the server stops reading from that
+ * client until it catches up, so back-pressure reaches the client through TCP
+ * flow control rather than piling up in memory.
+ *
+ * Writes back to a client never block the writer: they're queued for the
+ * server thread, which sends them as the channel has room.
+ *
+ * Only uses plain Java networking, so it works the same on an emulator as on a
+ * desktop JVM.
+ */
+public final class NioTcpServer implements Runnable {
+  private static final String TAG = "NioTcpServer";
+
+  /** Size of each pooled read buffer. */
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  /** Most buffers read for a client that can wait for its parser. */
+  private static final int MAX_PENDING_BUFFERS = 8;
+
+  /** Most idle buffers kept around for reuse. */
+  private static final int MAX_POOLED_BUFFERS = 32;
+
+  /** Most bytes queued for a client that isn't reading them before writes fail. */
+  private static final int MAX_QUEUED_WRITE_BYTES = 64 * 1024;
+
+  /** Marks the end of a client's stream in its pending queue. */
+  private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+  public interface Listener {
+    /**
+     * Called on the server thread when a client connects. Closing the client
+     * rejects it.
+     */
+    public void onClientConnected(Client client);
+
+    /**
+     * Called on the server thread once it has stopped accepting clients after
+     * {@link #stopListening}. No more clients connect after this.
+     */
+    public void onStoppedListening();
+  }
+
+  /** A connected client. */
+  public final class Client implements Transport.Connection {
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    /** Buffers read from the channel, waiting for the parser. */
+    private final LinkedBlockingQueue<ByteBuffer> pending = new LinkedBlockingQueue<ByteBuffer>();
+
+    /** True while the server has stopped reading, waiting for the parser. */
+    private volatile boolean paused;
+
+    /** True once the client has stopped sending. Server thread only. */
+    private boolean eof;
+
+    /** Data waiting to be written to the channel by the server thread. */
+    private final ConcurrentLinkedQueue<ByteBuffer> writes = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+
+    /** True once writing to the channel has failed. */
+    private volatile boolean broken;
+
+    /** True once closed, while the server finishes sending queued writes. */
+    private volatile boolean closing;
+
+    private final InputStream input = new InputStream() {
+        // Parser thread state.
+        private ByteBuffer current;
+        private boolean ended;
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+          return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+          if (length == 0) {
+            return 0;
+          }
+
+          if ((current == null) || !current.hasRemaining()) {
+            if (current != null) {
+              recycle(current);
+              current = null;
+            }
+
+            if (ended) {
+              return -1;
+            }
+
+            ByteBuffer next;
+
+            try {
+              next = pending.take();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException("Interrupted while waiting for input.");
+            }
+
+            if (next == END) {
+              ended = true;
+              return -1;
+            }
+
+            current = next;
+
+            if (paused && (pending.size() <= MAX_PENDING_BUFFERS / 2)) {
+              resume(Client.this);
+            }
+          }
+
+          int count = Math.min(length, current.remaining());
+          current.get(buf, offset, count);
+          return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+          Client.this.close();
+        }
+      };
+
+    private final OutputStream output = new OutputStream() {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+          single[0] = (byte) b;
+          write(single, 0, 1);
+        }
+
+        /**
+         * Queues a copy of the data for the server thread to send, and returns
+         * straight away.
+         */
+        @Override
+        public synchronized void write(byte[] buf, int offset, int length) throws IOException {
+          if (length == 0) {
+            return;
+          }
+
+          if (broken || closing || !channel.isOpen()) {
+            throw new IOException("Connection to " + Client.this + " is closed.");
+          }
+
+          if (queuedBytes.get() + length > MAX_QUEUED_WRITE_BYTES) {
+            throw new IOException(Client.this + " has stopped reading; "
+                + queuedBytes.get() + " bytes are still waiting to be sent.");
+          }
+
+          byte[] copy = new byte[length];
+          System.arraycopy(buf, offset, copy, 0, length);
+
+          queuedBytes.addAndGet(length);
+          writes.offer(ByteBuffer.wrap(copy));
+          flushing.offer(Client.this);
+          selector.wakeup();
+        }
+
+        @Override
+        public void close() throws IOException {
+          Client.this.close();
+        }
+      };
+
+    Client(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    /** @return the stream of bytes read from the client. */
+    @Override
+    public InputStream getInputStream() {
+      return input;
+    }
+
+    /** @return a stream that writes to the client. */
+    @Override
+    public OutputStream getOutputStream() {
+      return output;
+    }
+
+    /**
+     * Ends the client's input stream, and disconnects it once the server has
+     * sent everything already written to it.
+     */
+    @Override
+    public void close() throws IOException {
+      pending.offer(END);
+      closing = true;
+      flushing.offer(this);
+      selector.wakeup();
+
+      // Nobody's left to flush for us.
+      if (!selector.isOpen()) {
+        disconnect();
+      }
+    }
+
+    /** Disconnects the client straight away, dropping any unsent writes. */
+    void disconnect() throws IOException {
+      pending.offer(END);
+      writes.clear();
+      channel.close();
+    }
+
+    @Override
+    public String toString() {
+      return "Client[" + channel.socket().getRemoteSocketAddress() + "]";
+    }
+  }
+
+  private final int port;
+  private final Listener listener;
+
+  private volatile Selector selector;
+
+  /** False once asked to stop accepting clients. */
+  private volatile boolean listening = true;
+
+  /** Idle read buffers. */
+  private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+  /** Clients whose parsers have caught up, to start reading from again. */
+  private final ConcurrentLinkedQueue<Client> resumed = new ConcurrentLinkedQueue<Client>();
+
+  /** Clients with newly queued writes. */
+  private final ConcurrentLinkedQueue<Client> flushing = new ConcurrentLinkedQueue<Client>();
+
+  public NioTcpServer(int port, Listener listener) {
+    this.port = port;
+    this.listener = listener;
+  }
+
+  /**
+   * Accepts and reads from clients until {@link #stopListening}, then carries
+   * on serving the clients already connected until they've all been closed.
+   * Interrupting the thread instead disconnects every client straight away.
+   */
+  @Override
+  public void run() {
+    ServerSocketChannel server = null;
+
+    try {
+      selector = Selector.open();
+      server = ServerSocketChannel.open();
+      server.configureBlocking(false);
+      server.socket().setReuseAddress(true);
+      server.socket().bind(new InetSocketAddress(port));
+      server.register(selector, SelectionKey.OP_ACCEPT);
+
+      GypsumLog.i(TAG, "Listening on port " + port + ".");
+
+      while (!Thread.interrupted()) {
+        if (!listening && server.isOpen()) {
+          closeQuietly(server);
+          GypsumLog.i(TAG, "Stopped listening on port " + port + ".");
+          listener.onStoppedListening();
+        }
+
+        if (!server.isOpen() && !hasClients()) {
+          break;
+        }
+
+        selector.select();
+
+        Client client;
+
+        while ((client = resumed.poll()) != null) {
+          updateInterest(client);
+        }
+
+        while ((client = flushing.poll()) != null) {
+          write(client);
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+
+          if (!key.isValid()) {
+            continue;
+          }
+
+          try {
+            if (key.isAcceptable()) {
+              accept(server);
+              continue;
+            }
+
+            if (key.isWritable()) {
+              write((Client) key.attachment());
+            }
+
+            if (key.isValid() && key.isReadable()) {
+              read(key, (Client) key.attachment());
+            }
+          } catch (CancelledKeyException e) {
+            // The client's parser closed it while we were busy with it.
+          }
+        }
+      }
+    } catch (IOException e) {
+      GypsumLog.e(TAG, "Caught IOException during TCP operation: " + e.getMessage());
+    } finally {
+      if (selector != null) {
+        for (SelectionKey key : selector.keys()) {
+          if (key.attachment() instanceof Client) {
+            disconnectQuietly((Client) key.attachment());
+          }
+        }
+
+        try {
+          selector.close();
+        } catch (IOException e) {
+          GypsumLog.e(TAG, "Caught IOException while closing selector: " + e.getMessage());
+        }
+
+        // Clients closed while we were shutting down.
+        Client client;
+
+        while ((client = flushing.poll()) != null) {
+          if (client.closing) {
+            disconnectQuietly(client);
+          }
+        }
+      }
+
+      if (server != null) {
+        closeQuietly(server);
+      }
+    }
+  }
+
+  /**
+   * Stops accepting new clients, leaving those already connected to carry on.
+   * Can be called from any thread.
+   */
+  public void stopListening() {
+    listening = false;
+
+    Selector selector = this.selector;
+
+    if (selector != null) {
+      selector.wakeup();
+    }
+  }
+
+  /** @return true if any client is still connected. */
+  private boolean hasClients() {
+    for (SelectionKey key : selector.keys()) {
+      if (key.isValid() && (key.attachment() instanceof Client)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private void accept(ServerSocketChannel server) throws IOException {
+    SocketChannel channel = server.accept();
+
+    if (channel == null) {
+      return;
+    }
+
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+
+    Client client = new Client(channel);
+    client.key = channel.register(selector, SelectionKey.OP_READ, client);
+
+    GypsumLog.i(TAG, "Client connected: " + client);
+    listener.onClientConnected(client);
+  }
+
+  /** Reads whatever the client has sent into a buffer and queues it for its parser. */
+  private void read(SelectionKey key, Client client) {
+    ByteBuffer buf = pool.poll();
+
+    if (buf == null) {
+      buf = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    int count;
+
+    try {
+      count = client.channel.read(buf);
+    } catch (IOException e) {
+      GypsumLog.i(TAG, "Caught IOException reading from " + client + ": " + e.getMessage());
+      count = -1;
+    }
+
+    if (count <= 0) {
+      recycle(buf);
+
+      if (count < 0) {
+        // Keep the key around for anything still to be written back.
+        client.eof = true;
+        updateInterest(client);
+        client.pending.offer(END);
+      }
+
+      return;
+    }
+
+    buf.flip();
+
+    // Pause before the parser can see the buffer, so it can't drain the queue
+    // and miss that it has to resume us.
+    if (client.pending.size() + 1 >= MAX_PENDING_BUFFERS) {
+      client.paused = true;
+      updateInterest(client);
+    }
+
+    client.pending.offer(buf);
+  }
+
+  /** Writes as much queued data to the client as the channel will take. */
+  private void write(Client client) {
+    if (!client.channel.isOpen()) {
+      return;
+    }
+
+    ByteBuffer data;
+
+    try {
+      while ((data = client.writes.peek()) != null) {
+        client.channel.write(data);
+
+        if (data.hasRemaining()) {
+          break;
+        }
+
+        client.writes.poll();
+        client.queuedBytes.addAndGet(-data.capacity());
+      }
+    } catch (IOException e) {
+      GypsumLog.i(TAG, "Caught IOException writing to " + client + ": " + e.getMessage());
+      client.broken = true;
+      client.writes.clear();
+      client.key.cancel();
+      client.pending.offer(END);
+      return;
+    }
+
+    if (client.closing && client.writes.isEmpty()) {
+      disconnectQuietly(client);
+      return;
+    }
+
+    updateInterest(client);
+  }
+
+  /**
+   * Selects reads unless the client is paused, closing or has stopped
+   * sending, and writes while any are queued.
+   */
+  private void updateInterest(Client client) {
+    SelectionKey key = client.key;
+
+    if ((key == null) || !key.isValid()) {
+      return;
+    }
+
+    int ops = 0;
+
+    if (!client.paused && !client.eof && !client.closing) {
+      ops |= SelectionKey.OP_READ;
+    }
+
+    if (!client.writes.isEmpty()) {
+      ops |= SelectionKey.OP_WRITE;
+    }
+
+    try {
+      key.interestOps(ops);
+    } catch (CancelledKeyException e) {
+      // Closed by its parser; the selector drops it on the next select.
+    }
+  }
+
+  /** Starts reading from a paused client again. Called by its parser thread. */
+  private void resume(Client client) {
+    client.paused = false;
+    resumed.offer(client);
+    selector.wakeup();
+  }
+
+  private void recycle(ByteBuffer buf) {
+    if (pool.size() < MAX_POOLED_BUFFERS) {
+      buf.clear();
+      pool.offer(buf);
+    }
+  }
+
+  private static void disconnectQuietly(Client client) {
+    try {
+      client.disconnect();
+    } catch (IOException e) {
+      GypsumLog.e(TAG, "Caught IOException while disconnecting " + client + ": "
+            + e.getMessage());
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      GypsumLog.e(TAG, "Caught IOException while closing " + closeable + ": " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,281 @@
+package com.theonelab.navi.gypsum;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The sticky parameters table shared by every command a {@link CommandParser}
+ * dispatches.
+ *
+ * Parameters are stored by slot, where a slot is the {@link SymbolTable} ID of
+ * the parameter's key. Each kind of value lives in its own primitive array, so
+ * reading a parameter is a type check plus a single array read, and storing
+ * one never allocates a wrapper.
+ *
+ * String slots can also carry a pre-parsed packed ARGB color, so color
+ * parameters are only parsed when they change rather than on every draw.
+ *
+ * Not thread safe; the table is written by the parser and read by commands on
+ * the same thread. When commands run on a thread of their own, each one gets
+ * its own copy of the table.
+ */
+public final class ParamTable {
+  private static final int INITIAL_CAPACITY = 32;
+
+  /** Type of each slot's value, or null if the slot is unset. */
+  private Value.Type[] types = new Value.Type[INITIAL_CAPACITY];
+
+  private float[] numbers = new float[INITIAL_CAPACITY];
+  private float[] xcoords = new float[INITIAL_CAPACITY];
+  private float[] ycoords = new float[INITIAL_CAPACITY];
+  private boolean[] booleans = new boolean[INITIAL_CAPACITY];
+
+  /** Values for {@link Value.Type#String} and {@link Value.Type#Symbol} slots. */
+  private String[] strings = new String[INITIAL_CAPACITY];
+
+  /** Parsed colors for string slots, valid only where hasColor is set. */
+  private int[] colors = new int[INITIAL_CAPACITY];
+  private boolean[] hasColor = new boolean[INITIAL_CAPACITY];
+
+  public ParamTable() {
+  }
+
+  /** @return the type of the value in the given slot, or null if it's unset. */
+  public Value.Type getType(int slot) {
+    if ((slot < 0) || (slot >= types.length)) {
+      return null;
+    }
+
+    return types[slot];
+  }
+
+  public float getNumber(int slot) {
+    return numbers[slot];
+  }
+
+  public float getX(int slot) {
+    return xcoords[slot];
+  }
+
+  public float getY(int slot) {
+    return ycoords[slot];
+  }
+
+  public boolean getBoolean(int slot) {
+    return booleans[slot];
+  }
+
+  public String getString(int slot) {
+    return strings[slot];
+  }
+
+  /** @return true if the slot holds a string with a parsed color cached. */
+  public boolean hasColor(int slot) {
+    return (getType(slot) == Value.Type.String) && hasColor[slot];
+  }
+
+  public int getColor(int slot) {
+    return colors[slot];
+  }
+
+  public void setNumber(int slot, float value) {
+    ensureCapacity(slot);
+    types[slot] = Value.Type.Number;
+    numbers[slot] = value;
+  }
+
+  public void setCoordinate(int slot, float x, float y) {
+    ensureCapacity(slot);
+    types[slot] = Value.Type.Coordinate;
+    xcoords[slot] = x;
+    ycoords[slot] = y;
+  }
+
+  public void setBoolean(int slot, boolean value) {
+    ensureCapacity(slot);
+    types[slot] = Value.Type.Boolean;
+    booleans[slot] = value;
+  }
+
+  public void setString(int slot, String value) {
+    ensureCapacity(slot);
+    types[slot] = Value.Type.String;
+    strings[slot] = value;
+    hasColor[slot] = false;
+  }
+
+  /**
+   * Stores a color string along with the packed ARGB value it parsed to.
+   */
+  public void setColor(int slot, String value, int color) {
+    setString(slot, value);
+    colors[slot] = color;
+    hasColor[slot] = true;
+  }
+
+  /**
+   * Caches the parsed color for the string already in the slot.
+   */
+  public void cacheColor(int slot, int color) {
+    colors[slot] = color;
+    hasColor[slot] = true;
+  }
+
+  public void setSymbol(int slot, String value) {
+    ensureCapacity(slot);
+    types[slot] = Value.Type.Symbol;
+    strings[slot] = value;
+  }
+
+  /**
+   * Replaces every parameter with a copy of the ones in other, so the copy can
+   * be handed to another thread while other carries on being written.
+   */
+  public void copyFrom(ParamTable other) {
+    int count = other.types.length;
+    ensureCapacity(count - 1);
+
+    System.arraycopy(other.types, 0, types, 0, count);
+    System.arraycopy(other.numbers, 0, numbers, 0, count);
+    System.arraycopy(other.xcoords, 0, xcoords, 0, count);
+    System.arraycopy(other.ycoords, 0, ycoords, 0, count);
+    System.arraycopy(other.booleans, 0, booleans, 0, count);
+    System.arraycopy(other.strings, 0, strings, 0, count);
+    System.arraycopy(other.colors, 0, colors, 0, count);
+    System.arraycopy(other.hasColor, 0, hasColor, 0, count);
+
+    for (int i = count; i < types.length; i++) {
+      types[i] = null;
+      strings[i] = null;
+      hasColor[i] = false;
+    }
+  }
+
+  /**
+   * Moves every parameter set in this table into other, leaving the rest of
+   * other's parameters alone, and clears this table. Used to apply a form's
+   * parameters only once the whole form has parsed.
+   */
+  public void moveTo(ParamTable other) {
+    for (int slot = 0; slot < types.length; slot++) {
+      Value.Type type = types[slot];
+
+      if (type == null) {
+        continue;
+      }
+
+      other.ensureCapacity(slot);
+      other.types[slot] = type;
+      other.numbers[slot] = numbers[slot];
+      other.xcoords[slot] = xcoords[slot];
+      other.ycoords[slot] = ycoords[slot];
+      other.booleans[slot] = booleans[slot];
+      other.strings[slot] = strings[slot];
+      other.colors[slot] = colors[slot];
+      other.hasColor[slot] = hasColor[slot];
+
+      types[slot] = null;
+      strings[slot] = null;
+      hasColor[slot] = false;
+    }
+  }
+
+  /** Clears out a single parameter. */
+  public void clear(int slot) {
+    if ((slot < 0) || (slot >= types.length)) {
+      return;
+    }
+
+    types[slot] = null;
+    strings[slot] = null;
+    hasColor[slot] = false;
+  }
+
+  /** Clears out every parameter. */
+  public void clear() {
+    for (int i = 0; i < types.length; i++) {
+      types[i] = null;
+      strings[i] = null;
+      hasColor[i] = false;
+    }
+  }
+
+  /**
+   * @return the value in the given slot boxed up as a new {@link Value}, or
+   *         null if the slot is unset.
+   */
+  public Value toValue(int slot) {
+    Value.Type type = getType(slot);
+
+    if (type == null) {
+      return null;
+    }
+
+    switch (type) {
+      case String:
+        return new Value(strings[slot], false);
+      case Symbol:
+        return new Value(strings[slot], true);
+      case Number:
+        return new Value(numbers[slot]);
+      case Coordinate:
+        return new Value(xcoords[slot], ycoords[slot]);
+      case Boolean:
+        return new Value(booleans[slot]);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * @return a snapshot of every set parameter as a {@link Map} keyed by name.
+   *         Allocates; meant for debugging and serialization, not command
+   *         execution.
+   */
+  Map<String, Value> toMap(SymbolTable symbols) {
+    Map<String, Value> map = new HashMap<String, Value>();
+
+    for (int slot = 0; slot < types.length; slot++) {
+      if (types[slot] != null) {
+        map.put(symbols.name(slot), toValue(slot));
+      }
+    }
+
+    return map;
+  }
+
+  private void ensureCapacity(int slot) {
+    if (slot < types.length) {
+      return;
+    }
+
+    int capacity = Math.max(types.length * 2, slot + 1);
+
+    Value.Type[] newTypes = new Value.Type[capacity];
+    float[] newNumbers = new float[capacity];
+    float[] newXcoords = new float[capacity];
+    float[] newYcoords = new float[capacity];
+    boolean[] newBooleans = new boolean[capacity];
+    String[] newStrings = new String[capacity];
+    int[] newColors = new int[capacity];
+    boolean[] newHasColor = new boolean[capacity];
+
+    System.arraycopy(types, 0, newTypes, 0, types.length);
+    System.arraycopy(numbers, 0, newNumbers, 0, numbers.length);
+    System.arraycopy(xcoords, 0, newXcoords, 0, xcoords.length);
+    System.arraycopy(ycoords, 0, newYcoords, 0, ycoords.length);
+    System.arraycopy(booleans, 0, newBooleans, 0, booleans.length);
+    System.arraycopy(strings, 0, newStrings, 0, strings.length);
+    System.arraycopy(colors, 0, newColors, 0, colors.length);
+    System.arraycopy(hasColor, 0, newHasColor, 0, hasColor.length);
+
+    types = newTypes;
+    numbers = newNumbers;
+    xcoords = newXcoords;
+    ycoords = newYcoords;
+    booleans = newBooleans;
+    strings = newStrings;
+    colors = newColors;
+    hasColor = newHasColor;
+  }
+}
@@ -0,0 +1,225 @@
+package com.theonelab.navi.gypsum;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Connects clients in the same process through in-memory pipes, so the parser
+ * and commands can be driven, benchmarked and soak-tested without any sockets
+ * at all.
+ *
+ * Each call to {@link #connect} hands the caller one end of a new connection
+ * and queues the other end for {@link #accept}:
+ *
+ * <pre>
+ * {@code
+ * PipeTransport transport = new PipeTransport();
+ * new Thread(new TransportServer(transport, listener)).start();
+ *
+ * Transport.Connection client = transport.connect();
+ * client.getOutputStream().write("(reset)".getBytes("UTF-8"));
+ * }
+ * </pre>
+ *
+ * Unlike {@link java.io.PipedInputStream}, reads wake up as soon as anything
+ * is written, and don't fail when the thread that last wrote has gone away.
+ */
+public final class PipeTransport implements Transport {
+  /** Most writes that can wait to be read before writing blocks. */
+  private static final int MAX_PENDING_WRITES = 256;
+
+  /** Marks the end of a pipe. */
+  private static final byte[] END = new byte[0];
+
+  /** One direction of a connection. */
+  private static final class Pipe {
+    private final LinkedBlockingQueue<byte[]> pending =
+        new LinkedBlockingQueue<byte[]>(MAX_PENDING_WRITES);
+
+    private volatile boolean readClosed;
+    private volatile boolean writeClosed;
+
+    final InputStream input = new InputStream() {
+        // Reader thread state.
+        private byte[] current = END;
+        private int position;
+        private boolean ended;
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+          return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+          if (length == 0) {
+            return 0;
+          }
+
+          if (position == current.length) {
+            if (ended || readClosed) {
+              return -1;
+            }
+
+            try {
+              current = pending.take();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new InterruptedIOException("Interrupted while waiting for input.");
+            }
+
+            position = 0;
+
+            if (current == END) {
+              ended = true;
+              return -1;
+            }
+          }
+
+          int count = Math.min(length, current.length - position);
+          System.arraycopy(current, position, buf, offset, count);
+          position += count;
+          return count;
+        }
+
+        @Override
+        public void close() {
+          readClosed = true;
+
+          // Unblocks a writer waiting for room.
+          pending.clear();
+        }
+      };
+
+    final OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+          if (writeClosed || readClosed) {
+            throw new IOException("Pipe closed.");
+          }
+
+          if (length > 0) {
+            put(Arrays.copyOfRange(buf, offset, offset + length));
+          }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+          if (!writeClosed) {
+            writeClosed = true;
+
+            if (!readClosed) {
+              put(END);
+            }
+          }
+        }
+      };
+
+    private void put(byte[] data) throws IOException {
+      try {
+        pending.put(data);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while writing.");
+      }
+    }
+  }
+
+  /** One end of a connection: reads from one pipe and writes to the other. */
+  private static final class End implements Connection {
+    private final Pipe in;
+    private final Pipe out;
+
+    End(Pipe in, Pipe out) {
+      this.in = in;
+      this.out = out;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return in.input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return out.output;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.input.close();
+      out.output.close();
+    }
+  }
+
+  /** Server ends of connections waiting to be accepted. */
+  private final LinkedBlockingQueue<End> connected = new LinkedBlockingQueue<End>();
+
+  /** Queued by {@link #close} to wake up {@link #accept}. */
+  private final End closedMarker = new End(null, null);
+
+  private volatile boolean closed;
+
+  /** Nothing to set up; connections can be made straight away. */
+  @Override
+  public void listen() {
+  }
+
+  /**
+   * Makes a new connection.
+   *
+   * @return the client's end of it, or null if the transport has been closed.
+   */
+  public Connection connect() {
+    if (closed) {
+      return null;
+    }
+
+    Pipe toServer = new Pipe();
+    Pipe toClient = new Pipe();
+
+    connected.offer(new End(toServer, toClient));
+    return new End(toClient, toServer);
+  }
+
+  @Override
+  public Connection accept() throws IOException {
+    End end;
+
+    try {
+      end = connected.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a client.");
+    }
+
+    if (end == closedMarker) {
+      // Leave it for anyone else waiting.
+      connected.offer(closedMarker);
+      return null;
+    }
+
+    return end;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    connected.offer(closedMarker);
+  }
+
+  @Override
+  public String toString() {
+    return "PipeTransport[" + connected.size() + " waiting]";
+  }
+}
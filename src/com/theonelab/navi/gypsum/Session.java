@@ -0,0 +1,30 @@
+package com.theonelab.navi.gypsum;
+
+import android.graphics.RectF;
+
+/**
+ * One client's share of a {@link DisplayView}: the layer its drawing goes to
+ * and its clip. These are swapped into the view whenever one of the client's
+ * commands runs, so clients connected at the same time don't disturb each
+ * other's drawing state.
+ *
+ * The primary session owns the base layer and is the only one that can switch
+ * display modes. Any other session starts out with nothing to draw into, and
+ * only ever draws into layers it defines itself.
+ */
+final class Session {
+  final boolean primary;
+
+  // Drawing state, swapped in and out by the view.
+  Layer target;
+  final RectF clip = new RectF();
+  boolean clipped;
+
+  /** Set once the session has been told its commands are ignored in retained mode. */
+  boolean warnedRetained;
+
+  Session(boolean primary, Layer target) {
+    this.primary = primary;
+    this.target = target;
+  }
+}
@@ -0,0 +1,635 @@
+package com.theonelab.navi.gypsum;
+
+import java.nio.charset.Charset;
+
+/**
+ * A single-pass, allocation-free lexer for Gypsum s-expressions.
+ *
+ * Replaces the {@link java.io.StreamTokenizer} setup that
+ * {@link CommandParser} used to build for every incoming line. The lexer runs
+ * over a reusable UTF-8 byte buffer and hands out tokens by offset and length
+ * into that buffer, so lexing a form does not create any garbage. Only when a
+ * caller actually needs a {@link String} (see {@link #tokenString}) is one
+ * allocated.
+ *
+ * Tokenization rules mirror the old StreamTokenizer configuration:
+ *
+ *   - Bytes 0 through 32 are whitespace. Unlike StreamTokenizer, newlines are
+ *     not significant and are skipped like any other whitespace.
+ *   - Words start with a letter and continue with letters, digits and '-'.
+ *     Words are case-insensitive: {@link #tokenString} lowercases them and
+ *     {@link #tokenEquals} compares them against lowercase names.
+ *   - Numbers start with a digit or '-', and may contain a single '.'.
+ *   - Strings are delimited by '"', and support the same backslash escapes
+ *     StreamTokenizer does, including escaped quotes. Strings may not span
+ *     lines.
+ *   - Everything else, including '(', ')', '.', ':' and '\'', is returned as
+ *     an ordinary single character token.
+ *
+ * The lexer also checks that the input is well formed as it goes: parens must
+ * balance and strings must be terminated. The first violation is reported as
+ * a {@link #TT_ERROR} token, with {@link #getErrorMessage} describing it and
+ * {@link #getLine}, {@link #getColumn} and {@link #getOffset} locating it, so
+ * malformed input is rejected during the same pass that tokenizes it.
+ *
+ * Instances are not thread safe, but are meant to be reused for every form a
+ * thread parses.
+ */
+final class SexprLexer {
+  /** Returned by {@link #nextToken} when the end of the input is reached. */
+  public static final int TT_EOF = -1;
+
+  /** Returned by {@link #nextToken} when a number has been read into {@link #nval}. */
+  public static final int TT_NUMBER = -2;
+
+  /** Returned by {@link #nextToken} when a word has been read. */
+  public static final int TT_WORD = -3;
+
+  /** Returned by {@link #nextToken} when a quoted string has been read. */
+  public static final int TT_STRING = '"';
+
+  /**
+   * Returned by {@link #nextToken} when the input is not well formed. Once
+   * returned, every subsequent call returns it again.
+   */
+  public static final int TT_ERROR = -4;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int INITIAL_BUFFER_SIZE = 256;
+
+  /** The bytes currently being lexed. */
+  private byte[] buf;
+
+  /** Owned buffer {@link #reset(String)} encodes into. */
+  private byte[] ownBuf = new byte[INITIAL_BUFFER_SIZE];
+
+  /** Scratch space for strings that contained escape sequences. */
+  private byte[] escapeBuf = new byte[INITIAL_BUFFER_SIZE];
+
+  /** Scratch space for building lowercased words. */
+  private char[] charBuf = new char[INITIAL_BUFFER_SIZE];
+
+  private int pos;
+  private int limit;
+
+  /** Offset the input started at, so positions can be made relative to it. */
+  private int base;
+
+  /** Paren nesting depth at the current position. */
+  private int depth;
+
+  /** Line number and start-of-line offset for column calculation. */
+  private int line;
+  private int lineStart;
+
+  /** Position of the current token. */
+  private int tokenPos;
+  private int tokenLine;
+  private int tokenColumn;
+
+  private String errorMessage;
+
+  private int ttype = TT_EOF;
+  private byte[] tokenBuf;
+  private int tokenStart;
+  private int tokenLength;
+
+  /** The value of the last {@link #TT_NUMBER} token read. */
+  public float nval;
+
+  public SexprLexer() {
+  }
+
+  /**
+   * Prepares the lexer to read the given sexpr.
+   *
+   * The string is encoded as UTF-8 into a buffer owned by the lexer, which is
+   * only reallocated when a longer sexpr than any seen before comes along.
+   */
+  public void reset(String sexpr) {
+    int length = sexpr.length();
+
+    // Worst case UTF-8 expansion is three bytes per UTF-16 char.
+    if (ownBuf.length < length * 3) {
+      ownBuf = new byte[length * 3];
+    }
+
+    int out = 0;
+
+    for (int i = 0; i < length; i++) {
+      char c = sexpr.charAt(i);
+
+      if (c < 0x80) {
+        ownBuf[out++] = (byte) c;
+      } else if (c < 0x800) {
+        ownBuf[out++] = (byte) (0xc0 | (c >> 6));
+        ownBuf[out++] = (byte) (0x80 | (c & 0x3f));
+      } else {
+        ownBuf[out++] = (byte) (0xe0 | (c >> 12));
+        ownBuf[out++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        ownBuf[out++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+
+    reset(ownBuf, 0, out);
+  }
+
+  /**
+   * Prepares the lexer to read length bytes of UTF-8 encoded input from data,
+   * starting at offset. The bytes are not copied, and are never modified.
+   */
+  public void reset(byte[] data, int offset, int length) {
+    reset(data, offset, length, 1, 1);
+  }
+
+  /**
+   * Like {@link #reset(byte[], int, int)}, but with the line and column the
+   * first byte sits at in some larger stream, for error reporting.
+   */
+  public void reset(byte[] data, int offset, int length, int firstLine, int firstColumn) {
+    buf = data;
+    pos = offset;
+    limit = offset + length;
+    base = offset;
+    depth = 0;
+    line = firstLine;
+    lineStart = offset - (firstColumn - 1);
+    ttype = TT_EOF;
+    tokenBuf = data;
+    tokenStart = offset;
+    tokenLength = 0;
+    tokenPos = offset;
+    tokenLine = line;
+    tokenColumn = firstColumn;
+    errorMessage = null;
+    nval = 0f;
+  }
+
+  /**
+   * Runs the lexer over the rest of the input purely to check that it is well
+   * formed.
+   *
+   * @return true if no errors were found. Otherwise, the error and its position
+   *         are available as usual.
+   */
+  public boolean validate() {
+    int token;
+
+    while (((token = nextToken()) != TT_EOF) && (token != TT_ERROR)) {
+    }
+
+    return (token == TT_EOF);
+  }
+
+  /** @return a description of the error found, or null if there wasn't one. */
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  /** @return the line of the current token, or of the error found. */
+  public int getLine() {
+    return tokenLine;
+  }
+
+  /** @return the column of the current token, or of the error found. */
+  public int getColumn() {
+    return tokenColumn;
+  }
+
+  /**
+   * @return the byte offset of the current token, or of the error found,
+   *         relative to the start of the input.
+   */
+  public int getOffset() {
+    return tokenPos - base;
+  }
+
+  /** @return the type of the last token returned by {@link #nextToken}. */
+  public int getTokenType() {
+    return ttype;
+  }
+
+  /** @return the offset into the input the lexer will read from next. */
+  public int getPosition() {
+    return pos;
+  }
+
+  /**
+   * Reads the next token from the input.
+   *
+   * @return one of {@link #TT_EOF}, {@link #TT_NUMBER}, {@link #TT_WORD},
+   *         {@link #TT_STRING}, {@link #TT_ERROR}, or the character value of an
+   *         ordinary token.
+   */
+  public int nextToken() {
+    if (errorMessage != null) {
+      return ttype = TT_ERROR;
+    }
+
+    while ((pos < limit) && ((buf[pos] & 0xff) <= ' ')) {
+      if (buf[pos] == '\n') {
+        line++;
+        lineStart = pos + 1;
+      }
+
+      pos++;
+    }
+
+    markToken();
+
+    if (pos >= limit) {
+      tokenLength = 0;
+
+      if (depth > 0) {
+        return error("Unexpected end of input with " + depth + " unclosed '('");
+      }
+
+      return ttype = TT_EOF;
+    }
+
+    int c = buf[pos] & 0xff;
+
+    if (c == '(') {
+      depth++;
+    } else if (c == ')') {
+      if (depth == 0) {
+        return error("Unbalanced ')'");
+      }
+
+      depth--;
+    }
+
+    if ((c == '-') || ((c >= '0') && (c <= '9'))) {
+      return lexNumber();
+    }
+
+    if (isWordStart(c)) {
+      return lexWord();
+    }
+
+    if (c == '"') {
+      return lexString();
+    }
+
+    // Everything else is an ordinary character.
+    tokenBuf = buf;
+    tokenStart = pos;
+    pos += utf8SequenceLength(c);
+    tokenLength = pos - tokenStart;
+    return ttype = c;
+  }
+
+  private int lexNumber() {
+    int start = pos;
+    boolean negative = false;
+    int c = buf[pos] & 0xff;
+
+    if (c == '-') {
+      pos++;
+      c = (pos < limit) ? (buf[pos] & 0xff) : -1;
+
+      if ((c != '.') && ((c < '0') || (c > '9'))) {
+        // A lone '-' is an ordinary character.
+        tokenBuf = buf;
+        tokenStart = start;
+        tokenLength = 1;
+        return ttype = '-';
+      }
+
+      negative = true;
+    }
+
+    // Same arithmetic as StreamTokenizer so values come out bit-identical.
+    double value = 0;
+    int decimalExponent = 0;
+    int seenDot = 0;
+
+    while (pos < limit) {
+      c = buf[pos] & 0xff;
+
+      if ((c == '.') && (seenDot == 0)) {
+        seenDot = 1;
+      } else if ((c >= '0') && (c <= '9')) {
+        value = value * 10 + (c - '0');
+        decimalExponent += seenDot;
+      } else {
+        break;
+      }
+
+      pos++;
+    }
+
+    if (decimalExponent != 0) {
+      double denominator = 10;
+      decimalExponent--;
+
+      while (decimalExponent > 0) {
+        denominator *= 10;
+        decimalExponent--;
+      }
+
+      value = value / denominator;
+    }
+
+    nval = (float) (negative ? -value : value);
+    tokenBuf = buf;
+    tokenStart = start;
+    tokenLength = pos - start;
+    return ttype = TT_NUMBER;
+  }
+
+  private int lexWord() {
+    int start = pos;
+
+    while (pos < limit) {
+      int c = buf[pos] & 0xff;
+
+      if (isWordStart(c)) {
+        pos += utf8SequenceLength(c);
+      } else if (((c >= '0') && (c <= '9')) || (c == '-')) {
+        pos++;
+      } else {
+        break;
+      }
+    }
+
+    if (pos > limit) {
+      pos = limit;
+    }
+
+    tokenBuf = buf;
+    tokenStart = start;
+    tokenLength = pos - start;
+    return ttype = TT_WORD;
+  }
+
+  private int lexString() {
+    // Skip the opening quote.
+    pos++;
+
+    int start = pos;
+    boolean escaped = false;
+
+    while (pos < limit) {
+      int c = buf[pos];
+
+      if ((c == '"') || (c == '\n') || (c == '\r')) {
+        break;
+      } else if (c == '\\') {
+        escaped = true;
+        pos += 2;
+
+        if ((pos <= limit) && (buf[pos - 1] == '\n')) {
+          line++;
+          lineStart = pos;
+        }
+      } else {
+        pos++;
+      }
+    }
+
+    if (pos > limit) {
+      pos = limit;
+    }
+
+    int end = pos;
+
+    if ((pos >= limit) || (buf[pos] != '"')) {
+      return error("Unterminated string");
+    }
+
+    // Consume the closing quote.
+    pos++;
+
+    if (escaped) {
+      unescape(start, end);
+    } else {
+      tokenBuf = buf;
+      tokenStart = start;
+      tokenLength = end - start;
+    }
+
+    return ttype = TT_STRING;
+  }
+
+  /**
+   * Copies the string body between start and end into the escape buffer,
+   * resolving backslash escapes the same way StreamTokenizer does.
+   */
+  private void unescape(int start, int end) {
+    if (escapeBuf.length < end - start) {
+      escapeBuf = new byte[end - start];
+    }
+
+    int out = 0;
+    int i = start;
+
+    while (i < end) {
+      int c = buf[i++] & 0xff;
+
+      if ((c != '\\') || (i >= end)) {
+        escapeBuf[out++] = (byte) c;
+        continue;
+      }
+
+      c = buf[i++] & 0xff;
+
+      switch (c) {
+        case 'a': c = 0x7; break;
+        case 'b': c = '\b'; break;
+        case 'f': c = 0xc; break;
+        case 'n': c = '\n'; break;
+        case 'r': c = '\r'; break;
+        case 't': c = '\t'; break;
+        case 'v': c = 0xb; break;
+
+        default:
+          if ((c >= '0') && (c <= '7')) {
+            int first = c;
+            c = c - '0';
+
+            if ((i < end) && (buf[i] >= '0') && (buf[i] <= '7')) {
+              c = (c << 3) + (buf[i++] - '0');
+
+              if ((first <= '3') && (i < end) && (buf[i] >= '0') && (buf[i] <= '7')) {
+                c = (c << 3) + (buf[i++] - '0');
+              }
+            }
+
+            // Octal escapes name chars, so re-encode anything past ASCII.
+            if (c >= 0x80) {
+              escapeBuf[out++] = (byte) (0xc0 | (c >> 6));
+              escapeBuf[out++] = (byte) (0x80 | (c & 0x3f));
+              continue;
+            }
+          }
+          break;
+      }
+
+      escapeBuf[out++] = (byte) c;
+    }
+
+    tokenBuf = escapeBuf;
+    tokenStart = 0;
+    tokenLength = out;
+  }
+
+  /** Records the position of the token about to be read. */
+  private void markToken() {
+    tokenPos = pos;
+    tokenLine = line;
+    tokenColumn = pos - lineStart + 1;
+  }
+
+  /**
+   * Records an error at the current token's position.
+   *
+   * @return {@link #TT_ERROR}
+   */
+  private int error(String message) {
+    errorMessage = message;
+    tokenLength = 0;
+    return ttype = TT_ERROR;
+  }
+
+  /**
+   * Compares the current word, string or ordinary token against s without
+   * allocating. Words are compared case-insensitively, so s should be given in
+   * lowercase.
+   */
+  public boolean tokenEquals(String s) {
+    int length = s.length();
+
+    if (length != tokenLength) {
+      return false;
+    }
+
+    for (int i = 0; i < length; i++) {
+      int b = tokenBuf[tokenStart + i] & 0xff;
+
+      // Bail out on anything that isn't plain ASCII; the caller will fall back
+      // to comparing against tokenString().
+      if (b >= 0x80) {
+        return false;
+      }
+
+      if ((ttype == TT_WORD) && (b >= 'A') && (b <= 'Z')) {
+        b += 'a' - 'A';
+      }
+
+      if (b != s.charAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Hashes the current token's bytes, lowercasing words, with the same function
+   * as {@link SymbolTable#hash}.
+   */
+  public int tokenHash() {
+    int hash = 0x811c9dc5;
+
+    for (int i = tokenStart; i < tokenStart + tokenLength; i++) {
+      hash ^= lowerIfWord(tokenBuf[i]) & 0xff;
+      hash *= 0x01000193;
+    }
+
+    return hash;
+  }
+
+  /**
+   * Compares the current token's bytes, lowercasing words, against key without
+   * allocating.
+   */
+  public boolean tokenEquals(byte[] key) {
+    if (key.length != tokenLength) {
+      return false;
+    }
+
+    for (int i = 0; i < tokenLength; i++) {
+      if (lowerIfWord(tokenBuf[tokenStart + i]) != key[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * @return a copy of the current token's bytes, lowercasing words, suitable
+   *         for {@link #tokenEquals(byte[])}.
+   */
+  public byte[] tokenKey() {
+    byte[] key = new byte[tokenLength];
+
+    for (int i = 0; i < tokenLength; i++) {
+      key[i] = lowerIfWord(tokenBuf[tokenStart + i]);
+    }
+
+    return key;
+  }
+
+  private byte lowerIfWord(byte b) {
+    if ((ttype == TT_WORD) && (b >= 'A') && (b <= 'Z')) {
+      return (byte) (b + ('a' - 'A'));
+    }
+
+    return b;
+  }
+
+  /**
+   * @return the text of the current token as a new {@link String}. Words are
+   *         lowercased.
+   */
+  public String tokenString() {
+    if ((ttype == TT_EOF) || (ttype == TT_ERROR)) {
+      return null;
+    }
+
+    if (ttype != TT_WORD) {
+      return new String(tokenBuf, tokenStart, tokenLength, UTF_8);
+    }
+
+    if (charBuf.length < tokenLength) {
+      charBuf = new char[tokenLength];
+    }
+
+    for (int i = 0; i < tokenLength; i++) {
+      int b = tokenBuf[tokenStart + i] & 0xff;
+
+      if (b >= 0x80) {
+        // Rare: a word containing non-Latin-1 characters.
+        return new String(tokenBuf, tokenStart, tokenLength, UTF_8).toLowerCase();
+      }
+
+      if ((b >= 'A') && (b <= 'Z')) {
+        b += 'a' - 'A';
+      }
+
+      charBuf[i] = (char) b;
+    }
+
+    return new String(charBuf, 0, tokenLength);
+  }
+
+  /**
+   * StreamTokenizer treats ASCII letters and every char past Latin-1 as word
+   * characters. Lead bytes from 0xc4 up begin UTF-8 sequences for exactly
+   * those chars.
+   */
+  private static boolean isWordStart(int c) {
+    return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || (c >= 0xc4);
+  }
+
+  /** @return the number of bytes in the UTF-8 sequence led by c. */
+  private static int utf8SequenceLength(int c) {
+    if (c < 0xc0) return 1;
+    if (c < 0xe0) return 2;
+    if (c < 0xf0) return 3;
+    return 4;
+  }
+}
@@ -0,0 +1,367 @@
+package com.theonelab.navi.gypsum;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Incrementally frames s-expressions straight out of an {@link InputStream}.
+ *
+ * Bytes are read from the stream into a single reusable buffer and scanned as
+ * they arrive, tracking paren depth and string state. As soon as a top-level
+ * form closes, {@link #next} points a {@link SexprLexer} at the form's bytes in
+ * place -- no intermediate {@link String} or char[] copy is made.
+ *
+ * Forms may span multiple lines and multiple reads from the stream. Consumed
+ * bytes are compacted out of the front of the buffer only when more room is
+ * needed, so steady-state reading doesn't allocate. Garbage found between
+ * forms is discarded up to the end of its line.
+ *
+ * As in Emacs Lisp, an open paren at the very start of a line always begins a
+ * new top-level form, so the lines continuing a form have to be indented.
+ * That way a form missing its closing paren costs only that form: the next
+ * one started in column zero gives up on it. A form too large to buffer is
+ * thrown away up to its closing paren, or up to the next such line.
+ */
+final class SexprReader {
+  private static final String TAG = "SexprReader";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+
+  /** Largest single form we're willing to buffer before giving up on it. */
+  static final int MAX_FORM_SIZE = 64 * 1024;
+
+  private final InputStream stream;
+
+  private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+
+  /** Start of the data that hasn't been handed out yet. */
+  private int start;
+
+  /** End of the valid data in buf. */
+  private int end;
+
+  /** Where framing left off scanning. */
+  private int scan;
+
+  /** Start of the current form, or -1 if we're between forms. */
+  private int formStart = -1;
+  private int formEnd;
+
+  private int depth;
+  private boolean inString;
+  private boolean discarding;
+
+  /** True while throwing away the rest of a form too large to buffer. */
+  private boolean skipping;
+
+  /** Line and column the current form started on, for error reporting. */
+  private int formLine;
+  private int formColumn;
+  private int line = 1;
+
+  /** Offset in buf of the start of the current line. */
+  private int lineStart;
+
+  public SexprReader(InputStream stream) {
+    this.stream = stream;
+  }
+
+  /**
+   * @param pending bytes already read from the stream that should be framed
+   *        before anything else, such as whatever followed the frame that
+   *        switched encodings.
+   */
+  public SexprReader(InputStream stream, byte[] pending) {
+    this.stream = stream;
+
+    if (pending.length > buf.length) {
+      buf = new byte[pending.length];
+    }
+
+    System.arraycopy(pending, 0, buf, 0, pending.length);
+    end = pending.length;
+  }
+
+  /**
+   * Reads up to the end of the next complete top-level form and resets lexer
+   * to it.
+   *
+   * Blocks until a full form is available.
+   *
+   * @return true if a form is ready, false on end of stream.
+   */
+  public boolean next(SexprLexer lexer) throws IOException {
+    // Release the previous form.
+    if (formStart >= 0) {
+      start = formEnd;
+      formStart = -1;
+    }
+
+    while (!frame()) {
+      if (!fill()) {
+        if (formStart >= 0) {
+          GypsumLog.w(TAG, "End of stream inside a form started on line " + formLine + ".");
+        }
+
+        formStart = -1;
+        return false;
+      }
+    }
+
+    lexer.reset(buf, formStart, formEnd - formStart, formLine, formColumn);
+    return true;
+  }
+
+  /**
+   * Resets lexer back to the start of the most recently framed form, so it can
+   * be read again.
+   */
+  public void rewind(SexprLexer lexer) {
+    if (formStart >= 0) {
+      lexer.reset(buf, formStart, formEnd - formStart, formLine, formColumn);
+    }
+  }
+
+  /** @return the line number the most recently framed form started on. */
+  public int getLineNumber() {
+    return formLine;
+  }
+
+  /**
+   * @return the bytes of the most recently framed form, decoded as a new
+   *         {@link String}. Intended for error messages only.
+   */
+  public String getFormString() {
+    if (formStart < 0) {
+      return null;
+    }
+
+    return new String(buf, formStart, formEnd - formStart, UTF_8);
+  }
+
+  /**
+   * Consumes the rest of the line the most recently framed form ended on: any
+   * spaces, tabs and carriage returns after its closing paren, and the newline
+   * ending the line. Stops early, without consuming it, at any other byte.
+   *
+   * Blocks until the newline or another byte arrives, so call this only when
+   * the client is known to end the form's line, as it must before switching
+   * encodings.
+   */
+  public void skipRestOfLine() throws IOException {
+    if (formStart >= 0) {
+      start = formEnd;
+      formStart = -1;
+    }
+
+    while (true) {
+      while (start < end) {
+        int c = buf[start];
+
+        if ((c != ' ') && (c != '\t') && (c != '\r') && (c != '\n')) {
+          scan = start;
+          return;
+        }
+
+        start++;
+
+        if (c == '\n') {
+          scan = start;
+          return;
+        }
+      }
+
+      scan = start;
+
+      if (!fill()) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return any bytes read from the stream after the most recently framed
+   *         form, or after the end of its line if {@link #skipRestOfLine} was
+   *         called. The reader must not be used afterwards.
+   */
+  public byte[] drain() {
+    int from = (formStart >= 0) ? formEnd : start;
+    byte[] pending = new byte[end - from];
+
+    System.arraycopy(buf, from, pending, 0, pending.length);
+    start = scan = end;
+    formStart = -1;
+    return pending;
+  }
+
+  /** Closes the underlying stream. */
+  public void close() throws IOException {
+    stream.close();
+  }
+
+  /**
+   * Scans newly arrived bytes for the end of a form.
+   *
+   * @return true when a complete form sits between formStart and formEnd.
+   */
+  private boolean frame() {
+    while (scan < end) {
+      if (skipping) {
+        start = scan;
+      }
+
+      boolean atLineStart = (scan == lineStart);
+      int c = buf[scan++];
+
+      if (c == '\n') {
+        line++;
+        lineStart = scan;
+      }
+
+      if (discarding) {
+        discarding = (c != '\n');
+        start = scan;
+        continue;
+      }
+
+      if ((c == '(') && atLineStart && !inString && ((formStart >= 0) || skipping)) {
+        GypsumLog.e(TAG, "Form started on line " + formLine + " was never closed; "
+              + "dropping it for the one starting on line " + line + ".");
+        resetFraming();
+        skipping = false;
+        start = scan - 1;
+      }
+
+      if ((formStart < 0) && !skipping) {
+        if ((c & 0xff) <= ' ') {
+          start = scan;
+          continue;
+        }
+
+        if (c != '(') {
+          GypsumLog.e(TAG, "Expression did not start with '(' on line " + line
+                + "; skipping to end of line.");
+          discarding = (c != '\n');
+          start = scan;
+          continue;
+        }
+
+        formStart = scan - 1;
+        formLine = line;
+        formColumn = formStart - lineStart + 1;
+        depth = 1;
+        continue;
+      }
+
+      if (inString) {
+        if (c == '\\') {
+          if (scan == end) {
+            // Wait for the escaped byte to arrive before deciding anything.
+            scan--;
+            return false;
+          }
+
+          if (buf[scan] == '\n') {
+            line++;
+            lineStart = scan + 1;
+          }
+
+          scan++;
+        } else if ((c == '"') || (c == '\n') || (c == '\r')) {
+          inString = false;
+        }
+
+        continue;
+      }
+
+      switch (c) {
+        case '"':
+          inString = true;
+          break;
+
+        case '(':
+          depth++;
+          break;
+
+        case ')':
+          depth--;
+
+          if (depth == 0) {
+            if (skipping) {
+              skipping = false;
+              start = scan;
+              break;
+            }
+
+            formEnd = scan;
+            return true;
+          }
+          break;
+      }
+    }
+
+    if (skipping) {
+      start = scan;
+    }
+
+    return false;
+  }
+
+  /**
+   * Reads more data from the stream into the buffer, compacting or growing it
+   * as necessary.
+   *
+   * @return false on end of stream.
+   */
+  private boolean fill() throws IOException {
+    if (end == buf.length) {
+      int keep = (formStart >= 0) ? formStart : start;
+
+      if (keep > 0) {
+        compact(keep);
+      } else if (buf.length < MAX_FORM_SIZE) {
+        byte[] newBuf = new byte[Math.min(buf.length * 2, MAX_FORM_SIZE)];
+        System.arraycopy(buf, 0, newBuf, 0, end);
+        buf = newBuf;
+      } else {
+        GypsumLog.e(TAG, "Form starting on line " + formLine + " is larger than "
+              + MAX_FORM_SIZE + " bytes; discarding it.");
+        // Keep the paren depth and string state to find where it ends.
+        formStart = -1;
+        skipping = true;
+        lineStart = (lineStart == end) ? 0 : -1;
+        start = end = scan = 0;
+      }
+    }
+
+    int count = stream.read(buf, end, buf.length - end);
+
+    if (count < 0) {
+      return false;
+    }
+
+    end += count;
+    return true;
+  }
+
+  private void compact(int keep) {
+    System.arraycopy(buf, keep, buf, 0, end - keep);
+    end -= keep;
+    scan -= keep;
+    start -= keep;
+    lineStart -= keep;
+
+    if (formStart >= 0) {
+      formStart -= keep;
+    }
+  }
+
+  private void resetFraming() {
+    formStart = -1;
+    depth = 0;
+    inString = false;
+  }
+}
@@ -0,0 +1,176 @@
+package com.theonelab.navi.gypsum;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Base64;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * LRU cache of client-uploaded sprite bitmaps, keyed by ID and bounded by the
+ * total number of bytes of pixel data it holds.
+ *
+ * Evicted bitmaps aren't recycled, since a retained {@link DisplayList} may
+ * still be holding on to them; they're simply left for the garbage collector.
+ */
+final class SpriteCache {
+  private static final String TAG = "SpriteCache";
+
+  /** Default upper bound on the pixel data held, in bytes. */
+  public static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+  /** Upper bound on either dimension of a sprite when nothing tighter is known. */
+  public static final int MAX_DIMENSION = 2048;
+
+  private final LruCache<String, Bitmap> cache;
+
+  public SpriteCache(int maxBytes) {
+    cache = new LruCache<String, Bitmap>(maxBytes) {
+        @Override
+        protected int sizeOf(String id, Bitmap bitmap) {
+          return bitmap.getByteCount();
+        }
+      };
+  }
+
+  /** @return the sprite with the given ID, or null if it isn't cached. */
+  public Bitmap get(String id) {
+    return cache.get(id);
+  }
+
+  /**
+   * Decodes and caches a sprite, replacing any existing sprite with the same
+   * ID.
+   *
+   * The data is base64 encoded, and is either exactly width * height pixels
+   * of raw ARGB, four bytes per pixel with alpha first, or an image in any
+   * format {@link BitmapFactory} understands, such as PNG.
+   *
+   * Sprites wider than maxWidth or taller than maxHeight, or whose pixels
+   * wouldn't fit in the cache, are rejected before any pixel memory is
+   * allocated. Images are only measured up front, so a small PNG can't
+   * inflate into a huge bitmap.
+   *
+   * @return false if the data couldn't be decoded or the sprite is too large.
+   */
+  public boolean define(String id, int width, int height, String data,
+                        int maxWidth, int maxHeight) {
+    byte[] bytes;
+
+    try {
+      bytes = Base64.decode(data, Base64.DEFAULT);
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Sprite " + id + " isn't valid base64: " + e.getMessage());
+      return false;
+    }
+
+    Bitmap bitmap;
+
+    try {
+      if ((width > 0) && (height > 0) && (bytes.length == (long) width * height * 4)) {
+        if (!fits(id, width, height, maxWidth, maxHeight)) {
+          return false;
+        }
+
+        bitmap = decodeRaw(bytes, width, height);
+      } else {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+
+        if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+          Log.e(TAG, "Couldn't decode sprite " + id + ".");
+          return false;
+        }
+
+        if (!fits(id, options.outWidth, options.outHeight, maxWidth, maxHeight)) {
+          return false;
+        }
+
+        bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+      }
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Couldn't decode sprite " + id + ": " + e.getMessage());
+      return false;
+    } catch (OutOfMemoryError e) {
+      Log.e(TAG, "Ran out of memory decoding sprite " + id + ".");
+      return false;
+    }
+
+    if (bitmap == null) {
+      Log.e(TAG, "Couldn't decode sprite " + id + ".");
+      return false;
+    }
+
+    cache.put(id, bitmap);
+    return true;
+  }
+
+  /**
+   * @return true if a width by height ARGB sprite is within the given bounds
+   *         and small enough to be cached.
+   */
+  private boolean fits(String id, int width, int height, int maxWidth, int maxHeight) {
+    if ((width > maxWidth) || (height > maxHeight)) {
+      Log.e(TAG, "Sprite " + id + " is " + width + "x" + height + "; sprites may be at most "
+            + maxWidth + "x" + maxHeight + ".");
+      return false;
+    }
+
+    long byteCount = (long) width * height * 4;
+
+    if (byteCount > cache.maxSize()) {
+      Log.e(TAG, "Sprite " + id + " needs " + byteCount + " bytes, more than the whole "
+            + cache.maxSize() + " byte cache.");
+      return false;
+    }
+
+    return true;
+  }
+
+  /** Packs raw big-endian ARGB bytes into a bitmap. */
+  private static Bitmap decodeRaw(byte[] bytes, int width, int height) {
+    int[] pixels = new int[width * height];
+
+    for (int i = 0, j = 0; i < pixels.length; i++, j += 4) {
+      pixels[i] = ((bytes[j] & 0xff) << 24)
+          | ((bytes[j + 1] & 0xff) << 16)
+          | ((bytes[j + 2] & 0xff) << 8)
+          | (bytes[j + 3] & 0xff);
+    }
+
+    return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+  }
+
+  /** Drops every cached sprite. */
+  public void clear() {
+    cache.evictAll();
+  }
+
+  /** @return the number of bytes of pixel data cached. */
+  public int size() {
+    return cache.size();
+  }
+
+  public int maxSize() {
+    return cache.maxSize();
+  }
+
+  public int hitCount() {
+    return cache.hitCount();
+  }
+
+  public int missCount() {
+    return cache.missCount();
+  }
+
+  public int evictionCount() {
+    return cache.evictionCount();
+  }
+
+  @Override
+  public String toString() {
+    return "SpriteCache[size=" + size() + "/" + maxSize() + " bytes, hits=" + hitCount()
+        + ", misses=" + missCount() + ", evictions=" + evictionCount() + "]";
+  }
+}
@@ -0,0 +1,141 @@
+package com.theonelab.navi.gypsum;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.Region;
+
+/**
+ * Triple-buffered set of framebuffers shared between one producer thread,
+ * which draws, and one consumer thread, which displays. Buffers are handed
+ * between the two through a {@link TripleBuffer}, so nobody ever blocks on a
+ * lock.
+ *
+ * When the producer picks up a buffer that holds an older frame, only the
+ * areas damaged since that frame are copied forward from the one just
+ * published, falling back to a full copy if it is too far behind.
+ */
+final class SwapChain {
+  /** Number of frames of damage remembered for copying buffers forward. */
+  private static final int DAMAGE_HISTORY = 4;
+
+  private static final class Buffer {
+    final Bitmap bitmap;
+    final Canvas canvas;
+
+    /** Frame whose contents the buffer holds. Only used by the producer. */
+    int frame;
+
+    Buffer(int width, int height) {
+      bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+      canvas = new Canvas(bitmap);
+    }
+  }
+
+  private final int width;
+  private final int height;
+
+  private final TripleBuffer<Buffer> buffers;
+
+  // Producer state.
+  private Buffer back;
+  private int frame;
+  private final Rect[] damageHistory = new Rect[DAMAGE_HISTORY];
+  private final Rect copyRect = new Rect();
+  private final Paint copyPaint = new Paint();
+
+  public SwapChain(int width, int height) {
+    this.width = width;
+    this.height = height;
+
+    back = new Buffer(width, height);
+    buffers = new TripleBuffer<Buffer>(new Buffer(width, height), new Buffer(width, height));
+
+    for (int i = 0; i < DAMAGE_HISTORY; i++) {
+      damageHistory[i] = new Rect();
+    }
+
+    copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** @return the bitmap being drawn into. Producer thread only. */
+  public Bitmap getBackBitmap() {
+    return back.bitmap;
+  }
+
+  /**
+   * @return the canvas drawing into the back buffer. Producer thread only.
+   *         The canvas changes on every {@link #publish}, and its clip state
+   *         doesn't carry over.
+   */
+  public Canvas getBackCanvas() {
+    return back.canvas;
+  }
+
+  /**
+   * Publishes the back buffer for display and switches to a new one, brought
+   * up to date with the published frame. Producer thread only.
+   *
+   * @param damage the area changed since the last publish, which must lie
+   *        within the buffer.
+   */
+  public void publish(Rect damage) {
+    Buffer published = back;
+
+    frame++;
+    published.frame = frame;
+    damageHistory[frame % DAMAGE_HISTORY].set(damage);
+
+    Buffer next = buffers.publish(published);
+    copyForward(published, next);
+    back = next;
+  }
+
+  /**
+   * Switches to the most recently published frame, if there is one.
+   * Consumer thread only.
+   *
+   * @return the bitmap to display.
+   */
+  public Bitmap acquireFront() {
+    return buffers.acquire().bitmap;
+  }
+
+  private void copyForward(Buffer from, Buffer to) {
+    int behind = frame - to.frame;
+
+    if (behind <= 0) {
+      return;
+    }
+
+    if (behind > DAMAGE_HISTORY) {
+      copyRect.set(0, 0, width, height);
+    } else {
+      copyRect.setEmpty();
+
+      for (int f = to.frame + 1; f <= frame; f++) {
+        copyRect.union(damageHistory[f % DAMAGE_HISTORY]);
+      }
+    }
+
+    if (!copyRect.isEmpty()) {
+      to.canvas.save();
+      to.canvas.clipRect(copyRect, Region.Op.REPLACE);
+      to.canvas.drawBitmap(from.bitmap, copyRect, copyRect, copyPaint);
+      to.canvas.restore();
+    }
+
+    to.frame = frame;
+  }
+}
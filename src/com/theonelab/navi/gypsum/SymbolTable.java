@@ -0,0 +1,266 @@
+package com.theonelab.navi.gypsum;
+
+import java.nio.charset.Charset;
+
+/**
+ * Interning table for the symbols that appear in Gypsum commands -- command
+ * names, plist keys and quoted symbol values.
+ *
+ * Each distinct symbol is assigned a small integer ID, and a single canonical
+ * {@link String} for its name. Symbols can be resolved straight from the bytes
+ * of a {@link SexprLexer} token, so dispatching a command or storing a
+ * parameter never has to allocate or hash a freshly built String.
+ *
+ * The symbols used by the built-in command set are interned up front in a
+ * fixed order, so their IDs are the constants defined here and are the same in
+ * every table.
+ *
+ * Not thread safe; each {@link CommandParser} owns its own table.
+ */
+final class SymbolTable {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Returned when a symbol could not be found or interned. */
+  public static final int NO_SYMBOL = -1;
+
+  // Command names.
+  public static final int LINE = 0;
+  public static final int BOX = 1;
+  public static final int TEXT = 2;
+  public static final int SCROLL = 3;
+  public static final int MOVE = 4;
+  public static final int CLIP = 5;
+  public static final int RESET_CLIP = 6;
+  public static final int COMMIT = 7;
+  public static final int RESET = 8;
+
+  // Parameter keys. TEXT doubles as the :text key.
+  public static final int START = 9;
+  public static final int END = 10;
+  public static final int COLOR = 11;
+  public static final int WIDTH = 12;
+  public static final int FILLED = 13;
+  public static final int FONT = 14;
+  public static final int BOLD = 15;
+  public static final int ITALIC = 16;
+  public static final int SIZE = 17;
+  public static final int POS = 18;
+  public static final int DX = 19;
+  public static final int DY = 20;
+  public static final int BGCOLOR = 21;
+  public static final int MODE = 22;
+  public static final int NAME = 23;
+  public static final int VISIBLE = 24;
+  public static final int ID = 25;
+  public static final int DATA = 26;
+  public static final int HEIGHT = 27;
+  public static final int BATCH = 28;
+  public static final int PROTOCOL = 29;
+  public static final int ENCODING = 30;
+  public static final int COMPRESSION = 31;
+  public static final int VERSION = 32;
+  public static final int ACK = 33;
+  public static final int COALESCE = 34;
+
+  /** Names of the well-known symbols, indexed by ID. */
+  private static final String[] WELL_KNOWN_NAMES = {
+    "line", "box", "text", "scroll", "move", "clip", "reset-clip", "commit", "reset",
+    "start", "end", "color", "width", "filled", "font", "bold", "italic", "size", "pos",
+    "dx", "dy", "bgcolor", "mode", "name", "visible",
+    "id", "data", "height", "batch",
+    "protocol", "encoding", "compression", "version",
+    "ack", "coalesce",
+  };
+
+  /** Number of well-known symbols, whose IDs are fixed. */
+  public static final int WELL_KNOWN_COUNT = WELL_KNOWN_NAMES.length;
+
+  /**
+   * Upper bound on the number of symbols a table will hold, so a misbehaving
+   * client can't grow it without limit.
+   */
+  static final int MAX_SYMBOLS = 1024;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private String[] names = new String[INITIAL_CAPACITY];
+  private byte[][] keys = new byte[INITIAL_CAPACITY][];
+  private int[] hashes = new int[INITIAL_CAPACITY];
+  private int count;
+
+  /** Open addressed hash index of symbol ID + 1; zero marks an empty slot. */
+  private int[] index = new int[INITIAL_CAPACITY * 2];
+
+  public SymbolTable() {
+    for (String name : WELL_KNOWN_NAMES) {
+      intern(name);
+    }
+  }
+
+  /** @return the number of symbols interned so far. */
+  public int size() {
+    return count;
+  }
+
+  /** @return the canonical name of the symbol with the given ID. */
+  public String name(int id) {
+    if ((id < 0) || (id >= count)) {
+      return null;
+    }
+
+    return names[id];
+  }
+
+  /**
+   * Interns the given name, which is expected to already be lowercase.
+   *
+   * @return the symbol's ID, or {@link #NO_SYMBOL} if the table is full.
+   */
+  public int intern(String name) {
+    byte[] key = name.getBytes(UTF_8);
+    int hash = hash(key, 0, key.length);
+    int slot = find(key, hash);
+
+    if (index[slot] != 0) {
+      return index[slot] - 1;
+    }
+
+    return add(name, key, hash, slot);
+  }
+
+  /**
+   * Interns the word the lexer is sitting on. Only symbols that haven't been
+   * seen before cause any allocation.
+   *
+   * @return the symbol's ID, or {@link #NO_SYMBOL} if the table is full.
+   */
+  public int intern(SexprLexer lexer) {
+    int hash = lexer.tokenHash();
+    int slot = find(lexer, hash);
+
+    if (index[slot] != 0) {
+      return index[slot] - 1;
+    }
+
+    return add(lexer.tokenString(), lexer.tokenKey(), hash, slot);
+  }
+
+  private int add(String name, byte[] key, int hash, int slot) {
+    if (count >= MAX_SYMBOLS) {
+      return NO_SYMBOL;
+    }
+
+    if (count == names.length) {
+      grow();
+      slot = find(key, hash);
+    }
+
+    int id = count++;
+    names[id] = name;
+    keys[id] = key;
+    hashes[id] = hash;
+    index[slot] = id + 1;
+    return id;
+  }
+
+  private int find(byte[] key, int hash) {
+    int mask = index.length - 1;
+    int slot = hash & mask;
+
+    while (index[slot] != 0) {
+      int id = index[slot] - 1;
+
+      if ((hashes[id] == hash) && equals(keys[id], key)) {
+        break;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  private int find(SexprLexer lexer, int hash) {
+    int mask = index.length - 1;
+    int slot = hash & mask;
+
+    while (index[slot] != 0) {
+      int id = index[slot] - 1;
+
+      if ((hashes[id] == hash) && lexer.tokenEquals(keys[id])) {
+        break;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  /** Doubles the symbol arrays and rebuilds the index at half load. */
+  private void grow() {
+    int capacity = names.length * 2;
+
+    String[] newNames = new String[capacity];
+    byte[][] newKeys = new byte[capacity][];
+    int[] newHashes = new int[capacity];
+
+    System.arraycopy(names, 0, newNames, 0, count);
+    System.arraycopy(keys, 0, newKeys, 0, count);
+    System.arraycopy(hashes, 0, newHashes, 0, count);
+
+    names = newNames;
+    keys = newKeys;
+    hashes = newHashes;
+    index = new int[capacity * 2];
+
+    int mask = index.length - 1;
+
+    for (int id = 0; id < count; id++) {
+      int slot = hashes[id] & mask;
+
+      while (index[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+
+      index[slot] = id + 1;
+    }
+  }
+
+  /**
+   * @return true if values for the given parameter key are colors, and should
+   *         be parsed and validated as such when they're assigned.
+   */
+  public static boolean isColorKey(int id) {
+    return (id == COLOR) || (id == BGCOLOR);
+  }
+
+  private static boolean equals(byte[] a, byte[] b) {
+    if (a.length != b.length) {
+      return false;
+    }
+
+    for (int i = 0; i < a.length; i++) {
+      if (a[i] != b[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * FNV-1a over the given bytes. {@link SexprLexer#tokenHash} computes the
+   * same function over lowercased token bytes.
+   */
+  static int hash(byte[] data, int offset, int length) {
+    int hash = 0x811c9dc5;
+
+    for (int i = offset; i < offset + length; i++) {
+      hash ^= (data[i] & 0xff);
+      hash *= 0x01000193;
+    }
+
+    return hash;
+  }
+}
@@ -0,0 +1,134 @@
+package com.theonelab.navi.gypsum;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Accepts clients over TCP, serving all of them from a single
+ * {@link NioTcpServer} thread. Closing the transport stops listening; clients
+ * already accepted stay connected until they're closed, and the server thread
+ * exits once they all have been.
+ */
+public final class TcpTransport implements Transport {
+  private static final String TAG = "TcpTransport";
+
+  /** Port listened on when none is given. */
+  public static final int DEFAULT_PORT = 8888;
+
+  /** Queued once the server stops listening, to wake up {@link #accept}. */
+  private static final Connection CLOSED = new Connection() {
+      @Override
+      public InputStream getInputStream() {
+        return null;
+      }
+
+      @Override
+      public OutputStream getOutputStream() {
+        return null;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+
+  private final int port;
+
+  /** Clients connected but not yet accepted. */
+  private final LinkedBlockingQueue<Connection> connected = new LinkedBlockingQueue<Connection>();
+
+  private volatile NioTcpServer server;
+  private volatile boolean closed;
+
+  public TcpTransport(int port) {
+    this.port = port;
+  }
+
+  @Override
+  public void listen() {
+    server = new NioTcpServer(port, new NioTcpServer.Listener() {
+        @Override
+        public void onClientConnected(NioTcpServer.Client client) {
+          connected.offer(client);
+        }
+
+        @Override
+        public void onStoppedListening() {
+          // Nobody is going to accept these, so nothing else will close them.
+          Connection connection;
+
+          while ((connection = connected.poll()) != null) {
+            if (connection != CLOSED) {
+              try {
+                connection.close();
+              } catch (IOException e) {
+                GypsumLog.e(TAG, "Caught IOException while closing " + connection + ": "
+                      + e.getMessage());
+              }
+            }
+          }
+
+          connected.offer(CLOSED);
+        }
+      });
+
+    Thread serverThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            server.run();
+          } finally {
+            // Also covers the server failing to bind.
+            connected.offer(CLOSED);
+          }
+        }
+      }, "NioTcpServer:" + port);
+
+    serverThread.start();
+  }
+
+  @Override
+  public Connection accept() throws IOException {
+    Connection connection;
+
+    try {
+      connection = connected.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a client.");
+    }
+
+    if (connection == CLOSED) {
+      // Leave it for anyone else waiting.
+      connected.offer(CLOSED);
+      return null;
+    }
+
+    return connection;
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+
+    if (server != null) {
+      server.stopListening();
+    } else {
+      connected.offer(CLOSED);
+    }
+
+    GypsumLog.i(TAG, "Closed " + this + ".");
+  }
+
+  @Override
+  public String toString() {
+    return "TcpTransport[port " + port + "]";
+  }
+}
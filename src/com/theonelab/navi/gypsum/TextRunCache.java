@@ -0,0 +1,187 @@
+package com.theonelab.navi.gypsum;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.util.LruCache;
+
+/**
+ * LRU cache of pre-rasterized text, keyed by font, style, size, fill and the
+ * text itself, and bounded by the total bytes of the masks it holds.
+ *
+ * Each run is rendered once into an {@link Bitmap.Config#ALPHA_8} mask. Drawing
+ * a mask with a paint tints it with the paint's color, so the same run can be
+ * drawn in any color with a single blit instead of laying out and rasterizing
+ * every glyph again.
+ *
+ * Runs are only rasterized the second time they're asked for. Text that's
+ * only drawn once, like a counter that changes every frame, would otherwise
+ * cost a mask on top of drawing it, and push out runs that are reused.
+ *
+ * Not thread safe: lookups reuse a single probe key, and rasterizing reuses a
+ * single paint.
+ */
+final class TextRunCache {
+  /** Default upper bound on the mask data held, in bytes. */
+  public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+  /** Most runs remembered as seen once, but not yet rasterized. */
+  private static final int MAX_SEEN_ONCE = 256;
+
+  /** A rasterized run of text. */
+  public static final class Run {
+    public final Bitmap mask;
+
+    /** Offset of the mask's top left corner from the text's origin. */
+    public final int left;
+    public final int top;
+
+    Run(Bitmap mask, int left, int top) {
+      this.mask = mask;
+      this.left = left;
+      this.top = top;
+    }
+  }
+
+  private static final class Key {
+    String font;
+    int style;
+    float size;
+    boolean filled;
+    String text;
+
+    Key() {
+    }
+
+    Key(Key other) {
+      font = other.font;
+      style = other.style;
+      size = other.size;
+      filled = other.filled;
+      text = other.text;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+
+      Key k = (Key) o;
+      return (style == k.style) && (size == k.size) && (filled == k.filled)
+          && font.equals(k.font) && text.equals(k.text);
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = font.hashCode();
+      hash = hash * 31 + style;
+      hash = hash * 31 + Float.floatToIntBits(size);
+      hash = hash * 31 + (filled ? 1 : 0);
+      return hash * 31 + text.hashCode();
+    }
+  }
+
+  private final LruCache<Key, Run> cache;
+
+  /** Runs asked for once. Keys map to themselves. */
+  private final LruCache<Key, Key> seenOnce = new LruCache<Key, Key>(MAX_SEEN_ONCE);
+  private final Key probe = new Key();
+  private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final Rect bounds = new Rect();
+
+  public TextRunCache(int maxBytes) {
+    cache = new LruCache<Key, Run>(maxBytes) {
+        @Override
+        protected int sizeOf(Key key, Run run) {
+          return run.mask.getByteCount();
+        }
+      };
+  }
+
+  /**
+   * Returns the rasterized run for the given text, rendering it on a miss if
+   * it's been asked for before.
+   *
+   * @param font the font name, used as part of the key.
+   * @param face the typeface the font name resolves to.
+   * @return the run, or null if the text is new, empty or too large to cache,
+   *         in which case it should be drawn directly.
+   */
+  public Run get(String text, String font, Typeface face, int style, float size,
+      boolean filled) {
+    probe.font = font;
+    probe.style = style;
+    probe.size = size;
+    probe.filled = filled;
+    probe.text = text;
+
+    Run run = cache.get(probe);
+
+    if (run != null) {
+      return run;
+    }
+
+    if (seenOnce.remove(probe) == null) {
+      Key key = new Key(probe);
+      seenOnce.put(key, key);
+      return null;
+    }
+
+    paint.setTypeface(face);
+    paint.setTextSize(size);
+    paint.setStyle(filled ? Paint.Style.FILL_AND_STROKE : Paint.Style.STROKE);
+    paint.getTextBounds(text, 0, text.length(), bounds);
+
+    // Leave room for antialiasing and the stroke.
+    int outset = 1 + (int) Math.ceil(paint.getStrokeWidth() / 2);
+    int left = bounds.left - outset;
+    int top = bounds.top - outset;
+    int width = bounds.width() + outset * 2;
+    int height = bounds.height() + outset * 2;
+
+    if (bounds.isEmpty() || (width * height > cache.maxSize())) {
+      return null;
+    }
+
+    Bitmap mask = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+    new Canvas(mask).drawText(text, -left, -top, paint);
+
+    run = new Run(mask, left, top);
+    cache.put(new Key(probe), run);
+    return run;
+  }
+
+  /** Drops every cached run. */
+  public void clear() {
+    cache.evictAll();
+    seenOnce.evictAll();
+  }
+
+  /** @return the number of bytes of mask data cached. */
+  public int size() {
+    return cache.size();
+  }
+
+  public int maxSize() {
+    return cache.maxSize();
+  }
+
+  public int hitCount() {
+    return cache.hitCount();
+  }
+
+  public int missCount() {
+    return cache.missCount();
+  }
+
+  public int evictionCount() {
+    return cache.evictionCount();
+  }
+
+  @Override
+  public String toString() {
+    return "TextRunCache[size=" + size() + "/" + maxSize() + " bytes, hits=" + hitCount()
+        + ", misses=" + missCount() + ", evictions=" + evictionCount() + "]";
+  }
+}
@@ -0,0 +1,43 @@
+package com.theonelab.navi.gypsum;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Somewhere clients can connect to the display from, such as Bluetooth RFCOMM
+ * or a TCP port.
+ *
+ * Usage is {@link #listen} once, then {@link #accept} in a loop until it
+ * returns null, which it does once another thread calls {@link #close}. See
+ * {@link Transports#create} for picking one by name.
+ */
+public interface Transport extends Closeable {
+  /** A connected client. Closing it disconnects the client. */
+  public interface Connection extends Closeable {
+    /** @return the stream of bytes sent by the client. */
+    public InputStream getInputStream() throws IOException;
+
+    /** @return a stream that writes to the client. */
+    public OutputStream getOutputStream() throws IOException;
+  }
+
+  /** Starts accepting connections. */
+  public void listen() throws IOException;
+
+  /**
+   * Waits for the next client to connect.
+   *
+   * @return the new connection, or null once the transport has been closed.
+   */
+  public Connection accept() throws IOException;
+
+  /**
+   * Stops accepting connections, making any call to {@link #accept} waiting on
+   * another thread return null. Clients already accepted stay connected unless
+   * the transport says otherwise.
+   */
+  @Override
+  public void close() throws IOException;
+}
@@ -0,0 +1,76 @@
+package com.theonelab.navi.gypsum;
+
+import java.io.IOException;
+
+/**
+ * Simple server that listens on a {@link Transport} for incoming connections
+ * and notifies the owner of this instance whenever a client connects.
+ *
+ * Which transport to use is up to the owner -- see {@link Transports#create}.
+ * Nothing here depends on how clients reach us, so the same server runs the
+ * display over Bluetooth on a real device, over TCP on an emulator, and over
+ * in-memory pipes on a desktop JVM.
+ */
+public class TransportServer implements Runnable {
+  private static final String TAG = "TransportServer";
+
+  /**
+   * Callback listener interface for notifying the caller when a client has
+   * connected.
+   */
+  public interface Listener {
+    /**
+     * Called on the server thread when a new client has connected. Closing the
+     * connection rejects it.
+     */
+    public void onClientConnected(Transport.Connection connection);
+  }
+
+  private final Transport transport;
+  private final Listener listener;
+
+  public TransportServer(Transport transport, Listener listener) {
+    this.transport = transport;
+    this.listener = listener;
+  }
+
+  /** Accepts clients until {@link #stop} is called. */
+  public void run() {
+    GypsumLog.i(TAG, "TransportServer started on " + transport + ".");
+
+    try {
+      transport.listen();
+
+      while (!Thread.interrupted()) {
+        GypsumLog.i(TAG, "Waiting for next client.");
+        Transport.Connection connection = transport.accept();
+
+        if (connection == null) {
+          break;
+        }
+
+        GypsumLog.i(TAG, "Client connected.");
+        listener.onClientConnected(connection);
+      }
+    } catch (IOException e) {
+      GypsumLog.e(TAG, "Caught IOException on " + transport + ": " + e.getMessage());
+    } finally {
+      stop();
+    }
+
+    GypsumLog.i(TAG, "TransportServer stopped.");
+  }
+
+  /**
+   * Stops accepting clients, making {@link #run} return. May be called from
+   * any thread.
+   */
+  public void stop() {
+    try {
+      transport.close();
+    } catch (IOException e) {
+      GypsumLog.e(TAG, "Caught an IOException while closing " + transport + ": "
+            + e.getMessage());
+    }
+  }
+}
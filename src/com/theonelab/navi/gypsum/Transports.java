@@ -0,0 +1,69 @@
+package com.theonelab.navi.gypsum;
+
+/**
+ * Picks a {@link Transport} from a short description, so which one the display
+ * listens on is a matter of configuration. Descriptions look like:
+ *
+ * <ul>
+ * <li><code>bluetooth</code> -- RFCOMM, see {@link BluetoothTransport}.</li>
+ * <li><code>tcp</code> or <code>tcp:port</code> -- see {@link TcpTransport}.</li>
+ * <li><code>local</code> or <code>local:name</code> -- a Unix-domain socket,
+ *     see {@link LocalSocketTransport}.</li>
+ * </ul>
+ *
+ * {@link PipeTransport} isn't among them: its clients connect through the
+ * instance itself, so whoever makes one has to hold on to it.
+ */
+public final class Transports {
+  private static final String TAG = "Transports";
+
+  public static final String BLUETOOTH = "bluetooth";
+  public static final String TCP = "tcp";
+  public static final String LOCAL = "local";
+
+  private Transports() {
+  }
+
+  /**
+   * @return a new transport matching description, or null if the description
+   *         can't be understood.
+   */
+  public static Transport create(String description) {
+    String kind = description.trim();
+    String argument = null;
+    int colon = kind.indexOf(':');
+
+    if (colon >= 0) {
+      argument = kind.substring(colon + 1);
+      kind = kind.substring(0, colon);
+    }
+
+    if (kind.equals(BLUETOOTH) && (argument == null)) {
+      return new BluetoothTransport();
+    } else if (kind.equals(TCP)) {
+      int port = TcpTransport.DEFAULT_PORT;
+
+      if (argument != null) {
+        try {
+          port = Integer.parseInt(argument);
+        } catch (NumberFormatException e) {
+          GypsumLog.e(TAG, "Bad TCP port in transport " + description);
+          return null;
+        }
+      }
+
+      return new TcpTransport(port);
+    } else if (kind.equals(LOCAL)) {
+      if ((argument != null) && argument.isEmpty()) {
+        GypsumLog.e(TAG, "Empty socket name in transport " + description);
+        return null;
+      }
+
+      return new LocalSocketTransport(
+          (argument != null) ? argument : LocalSocketTransport.DEFAULT_NAME);
+    }
+
+    GypsumLog.e(TAG, "Unknown transport " + description);
+    return null;
+  }
+}
@@ -0,0 +1,72 @@
+package com.theonelab.navi.gypsum;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free handoff of the latest of a series of frames from one producer
+ * thread to one consumer thread, recycling three instances between them.
+ *
+ * The producer always owns the instance it's filling and the consumer always
+ * owns the one it's reading, so neither ever touches an instance the other is
+ * using. The third instance moves between them through two atomic slots:
+ * <code>ready</code> holds the most recently published instance that hasn't
+ * been picked up yet, and <code>spare</code> holds the one the consumer last
+ * let go of. Publishing and acquiring are each a single atomic exchange.
+ *
+ * Frames that are published faster than they're consumed are simply dropped
+ * in favor of the newest one.
+ */
+final class TripleBuffer<T> {
+  private final AtomicReference<T> ready = new AtomicReference<T>();
+  private final AtomicReference<T> spare = new AtomicReference<T>();
+
+  // Consumer state.
+  private T front;
+
+  /**
+   * @param front the instance the consumer starts out with.
+   * @param spare the instance the producer will fill after its first publish.
+   */
+  public TripleBuffer(T front, T spare) {
+    this.front = front;
+    this.spare.set(spare);
+  }
+
+  /**
+   * Publishes the given instance to the consumer. Producer thread only.
+   *
+   * @return the instance to fill next. Its contents are whatever was last put
+   *         in it, which may be an older frame that was never consumed.
+   */
+  public T publish(T back) {
+    // If the consumer never picked up the previous frame, just take it back.
+    T next = ready.getAndSet(back);
+
+    if (next == null) {
+      // Otherwise the consumer has the third instance in hand and is about to
+      // release its old front into spare.
+      while ((next = spare.getAndSet(null)) == null) {
+        Thread.yield();
+      }
+    }
+
+    return next;
+  }
+
+  /**
+   * Switches to the most recently published frame, if there is one.
+   * Consumer thread only.
+   *
+   * @return the frame to consume.
+   */
+  public T acquire() {
+    T next = ready.getAndSet(null);
+
+    if (next != null) {
+      spare.set(front);
+      front = next;
+    }
+
+    return front;
+  }
+}
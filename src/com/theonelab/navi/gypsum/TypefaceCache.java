@@ -0,0 +1,129 @@
+package com.theonelab.navi.gypsum;
+
+import android.content.res.AssetManager;
+import android.graphics.Typeface;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * LRU cache of {@link Typeface}s keyed by font name and style.
+ *
+ * Loading a font from assets means going through the {@link AssetManager} and
+ * parsing the TTF, which is far too slow to do for every <code>text</code>
+ * command. Fonts are loaded once and kept around until they fall out of the
+ * cache.
+ *
+ * Not thread safe: lookups reuse a single probe key to avoid allocating on
+ * cache hits.
+ */
+final class TypefaceCache {
+  private static final String TAG = "TypefaceCache";
+
+  /** Default number of typefaces to keep around. */
+  public static final int DEFAULT_SIZE = 16;
+
+  private static final class Key {
+    String font;
+    int style;
+
+    Key() {
+    }
+
+    Key(String font, int style) {
+      this.font = font;
+      this.style = style;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+
+      Key k = (Key) o;
+      return (style == k.style) && font.equals(k.font);
+    }
+
+    @Override
+    public int hashCode() {
+      return font.hashCode() * 31 + style;
+    }
+  }
+
+  private final AssetManager assets;
+  private final LruCache<Key, Typeface> cache;
+  private final Key probe = new Key();
+
+  public TypefaceCache(AssetManager assets, int maxSize) {
+    this.assets = assets;
+    this.cache = new LruCache<Key, Typeface>(maxSize);
+  }
+
+  /**
+   * Returns the typeface for the given font and style, loading it on a miss.
+   *
+   * The names "sans", "serif" and "monospace" refer to the system default
+   * typeface; anything else is loaded from the <code>font.ttf</code> asset.
+   *
+   * @param font the font name.
+   * @param style a combination of {@link Typeface#BOLD} and
+   *        {@link Typeface#ITALIC}.
+   * @return the typeface, or null if it couldn't be loaded.
+   */
+  public Typeface get(String font, int style) {
+    probe.font = font;
+    probe.style = style;
+
+    Typeface face = cache.get(probe);
+
+    if (face != null) {
+      return face;
+    }
+
+    face = load(font, style);
+
+    if (face != null) {
+      cache.put(new Key(font, style), face);
+    }
+
+    return face;
+  }
+
+  private Typeface load(String font, int style) {
+    if (font.equals("sans") || font.equals("serif") || font.equals("monospace")) {
+      return Typeface.create((Typeface) null, style);
+    }
+
+    try {
+      return Typeface.createFromAsset(assets, font + ".ttf");
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Couldn't create font from " + font + ".ttf: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /** Drops every cached typeface. */
+  public void clear() {
+    cache.evictAll();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  public int maxSize() {
+    return cache.maxSize();
+  }
+
+  public int hitCount() {
+    return cache.hitCount();
+  }
+
+  public int missCount() {
+    return cache.missCount();
+  }
+
+  @Override
+  public String toString() {
+    return "TypefaceCache[size=" + size() + "/" + maxSize() + ", hits=" + hitCount()
+        + ", misses=" + missCount() + "]";
+  }
+}
@@ -0,0 +1,405 @@
+package com.theonelab.navi.gypsum;
+
+import java.io.IOException;
+import java.io.StreamTokenizer;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The original StreamTokenizer-based {@link CommandParser#parse(String, Map)},
+ * copied verbatim apart from logging through {@link GypsumLog}, and kept as the
+ * reference the current parser is checked against. Where the current parser
+ * deliberately differs, {@link CommandParserTest} says so case by case rather
+ * than this class being changed to match.
+ */
+final class BaselineParser {
+  private static final String TAG = "BaselineParser";
+
+  private BaselineParser() {
+  }
+
+  /**
+   * Does a number of checks against a sexpr to ensure that it is well formed.
+   *
+   * Checks done:
+   *   - Ensure it starts with (
+   *   - Ensure it ends with )
+   *   - Ensure () are balanced
+   *   - Ensure "" are balanced
+   *
+   * @param sexpr the s-expression to check for well-formedness.
+   * @return true if the given sexpr is well formed.
+   * @visiblefortesting
+   */
+  static boolean isWellFormed(String sexpr) {
+    if (sexpr == null) {
+      GypsumLog.wtf(TAG, "sexpr is (null)?!");
+      return false;
+    }
+
+    if (!sexpr.startsWith("(")) {
+      return false;
+    }
+
+    if (!sexpr.endsWith(")")) {
+      return false;
+    }
+
+    // Ensure we have balanced parens -- count them!
+    Pattern parenPattern = Pattern.compile("[\\)\\(]");
+    Matcher parenMatcher = parenPattern.matcher(sexpr);
+    int parenCount = 0;
+
+    while (parenMatcher.find()) {
+      if (parenMatcher.group(0).equals("(")) parenCount++;
+      if (parenMatcher.group(0).equals(")")) parenCount--;
+    }
+
+    if (parenCount != 0) {
+      GypsumLog.v(TAG, "sexpr parens unbalanced.");
+
+      if (parenCount > 0) {
+        GypsumLog.w(TAG, "sexpr parens unbalanced: too many (s");
+      } else if (parenCount < 0) {
+        GypsumLog.w(TAG, "sexpr parens unbalanced: too many )s");
+      }
+
+      return false;
+    }
+
+    // Ensure we have balanced quotes -- count them, too!
+    Pattern quotePattern = Pattern.compile("\"");
+    Matcher quoteMatcher = quotePattern.matcher(sexpr);
+    int quoteCount = 0;
+
+    while (quoteMatcher.find()) {
+      quoteCount++;
+    }
+
+    if ((quoteCount % 2) != 0) {
+      GypsumLog.w(TAG, "sexpr quotes unbalanced: too many/few \"s.");
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Prepares a new {@link StreamTokenizer} for parsing the given sexpr.
+   */
+  private static StreamTokenizer getTokenizer(String sexpr) {
+    StringReader reader = new StringReader(sexpr);
+    StreamTokenizer tokenizer = new StreamTokenizer(reader);
+
+    tokenizer.resetSyntax();
+
+    tokenizer.eolIsSignificant(true);
+    tokenizer.lowerCaseMode(true);
+    tokenizer.parseNumbers();
+
+    tokenizer.quoteChar('"');
+
+    tokenizer.wordChars('a', 'z');
+    tokenizer.wordChars('A', 'Z');
+    tokenizer.wordChars('-', '-');
+
+    // Allow for dots in dotted pairs.
+    tokenizer.ordinaryChar('.');
+
+    // 32 is space, everything before is control characters.
+    tokenizer.whitespaceChars(0, 32);
+
+    return tokenizer;
+  }
+
+  /**
+   * Returns the command and extracts all tagged parameters in an s-expression.
+   *
+   * params is updated atomically, and only if the sexpr passed in was formatted
+   * correctly.
+   *
+   * @param sexpr the s-expression to extract the tagged parameters from.
+   * @param params the {@link Map} to store each {@link Paramenter} in.
+   * @return a string containing the parsed command name, or null if the sexpr
+   *         was invalid in some way.
+   */
+  public static String parse(String sexpr, Map<String, Value> params) {
+    if (!isWellFormed(sexpr)) {
+      GypsumLog.e(TAG, "Sexpr " + sexpr + " not well formed.");
+      return null;
+    }
+
+    StreamTokenizer tokenizer = getTokenizer(sexpr);
+    boolean inExpression = false;
+
+    String command = null;
+    int token;
+
+    try {
+      while ((token = tokenizer.nextToken()) != StreamTokenizer.TT_EOF) {
+        switch (token) {
+          case '(':
+            if (inExpression) {
+              GypsumLog.e(TAG, "Unexpected subexpression!");
+              return null;
+            }
+
+            inExpression = true;
+            break;
+
+          case StreamTokenizer.TT_WORD:
+            if (!inExpression) {
+              GypsumLog.e(TAG, "Expression did not start with '('!");
+              return null;
+            } else if (command == null) {
+              command = tokenizer.sval.toLowerCase();
+            } else {
+              GypsumLog.e(TAG, "Unrecognized bareword [" + tokenizer.sval + "]");
+              return null;
+            }
+            break;
+
+          case StreamTokenizer.TT_NUMBER:
+            if (!inExpression) {
+              GypsumLog.e(TAG, "Expression did not start with '('!");
+              return null;
+            }
+
+            GypsumLog.e(TAG, "Unexpected number '" + tokenizer.nval + "'");
+            return null;
+          
+          case '\'':
+          case ':':
+            if (!inExpression) {
+              GypsumLog.e(TAG, "Expression did not start with '('!");
+              return null;
+            }
+
+            // This is the start of the command in the plist. Continue so we can
+            // grab it the next time around.
+            if (command == null) {
+              continue;
+            }
+
+            String paramName = BaselineParser.parseParamSymbol(tokenizer);
+
+            if (paramName == null) {
+              GypsumLog.e(TAG, "Couldn't parse param name.");
+              return null;
+            }
+
+            Value paramValue = null;
+
+            if (params.containsKey(paramName)) {
+              paramValue = params.get(paramName);
+            } else {
+              paramValue = new Value();
+            }
+
+            if (!BaselineParser.parseParamValue(tokenizer, paramValue)) {
+              GypsumLog.e(TAG, "Couldn't parse param name or value.");
+              return null;
+            }
+
+            params.put(paramName, paramValue);
+            break;
+
+          case ')':
+            if (!inExpression) {
+              GypsumLog.e(TAG, "Premature end of expression -- did not start with '('!");
+              return null;
+            }
+
+            if (command == null) {
+              GypsumLog.e(TAG, "Premature end of expression -- no command specified!");
+              return null;
+            }
+
+            inExpression = false;
+            break;
+
+          default:
+            GypsumLog.v(TAG, "Tokenized unknown token [" + token + "].");
+            GypsumLog.e(TAG, "Unexpected character '" + tokenizer.sval + "'!");
+            return null;
+        }
+      }
+
+      if (inExpression) {
+        GypsumLog.e(TAG, "EOL encountered while waiting for end of expression!");
+        return null;
+      }
+
+      return command;
+    } catch (IOException e) {
+      GypsumLog.e(TAG, "Caught IOException during parse -- this shouldn't happen!");
+      return null;
+    }
+  }
+
+  /**
+   * Parses in a plist tag symbol.
+   *
+   * Parses a symbol of the form <code>:foo</code>. Extracts just the name part
+   * from the symbol and returns it.
+   */
+  private static String parseParamSymbol(StreamTokenizer tokenizer)
+      throws IOException {
+    int token = tokenizer.nextToken();
+
+    switch (token) {
+      case StreamTokenizer.TT_WORD:
+        return tokenizer.sval.toLowerCase();
+
+      case StreamTokenizer.TT_EOF:
+      case StreamTokenizer.TT_EOL:
+        GypsumLog.e(TAG, "Unexpected end of stream in plist symbol!");
+        return null;
+
+      case StreamTokenizer.TT_NUMBER:
+        GypsumLog.e(TAG, "Unexpected number '" + tokenizer.nval + " in plist symbol!");
+        return null;
+
+      default:
+        GypsumLog.e(TAG, "Unexpected character '" + token + "' in plist symbol!");
+        return null;
+    }
+  }
+
+  /**
+   * Parses in a plist value into a {@link Value} instance.
+   *
+   * Does some basic parsing of the various types and converts them into usable
+   * {@link Value} instances.
+   *
+   * @param tokenizer The {@link StreamTokenizer} to grab tokens from.
+   * @param value The previous {@link Value} -- this will be mutated on
+   *              successful parsing.
+   * @return true when the param value could be parsed, false otherwise. value
+   *         remains unchanged on failure.
+   */
+  private static boolean parseParamValue(StreamTokenizer tokenizer, Value value)
+      throws IOException {
+    int token = tokenizer.nextToken();
+
+    switch (token) {
+      case StreamTokenizer.TT_EOF:
+      case StreamTokenizer.TT_EOL:
+        GypsumLog.e(TAG, "Unexpected end of stream in plist value!");
+        return false;
+
+      case StreamTokenizer.TT_WORD:
+        String parsedValue = tokenizer.sval.toLowerCase();
+
+        if (parsedValue.equals("nil")) {
+          value.type = Value.Type.Boolean;
+          value.bval = false;
+          return true;
+        } else if (parsedValue.equals("t")) {
+          value.type = Value.Type.Boolean;
+          value.bval = true;
+          return true;
+        }
+
+        GypsumLog.e(TAG, "Unexpected bareword '" + tokenizer.sval + "' found in plist "
+              + "value!");
+        return false;
+
+      case StreamTokenizer.TT_NUMBER:
+        value.type = Value.Type.Number;
+        value.ival = (float) tokenizer.nval;
+        return true;
+
+      case '"':    // Quoted string
+        value.type = Value.Type.String;
+        value.sval = tokenizer.sval;
+        return true;
+
+      case '\'':   // Symbol
+        return parseSymbol(tokenizer, value);
+
+      case '(':    // Coordinate
+        return parseCoordinate(tokenizer, value);
+
+      default:
+        GypsumLog.e(TAG, "Unexpected character '" + (char)(token) + "' in plist value!");
+        return false;
+    }
+  }
+
+  /**
+   * Parses in a symbol expression.
+   *
+   * Symbol expressions are of the form <code>'foo</code>.
+   *
+   * @param tokenizer The {@link StreamTokenizer} to read tokens from.
+   * @param value A {@link Value} to store the newly parsed value in. Will be
+   *        mutated.
+   * @return true if the symbol could be parsed successfully, false otherwise.
+   *         value remains unchanged on failure.
+   */
+  private static boolean parseSymbol(StreamTokenizer tokenizer, Value value)
+      throws IOException {
+    int token = tokenizer.nextToken();
+
+    if (token != StreamTokenizer.TT_WORD) {
+      GypsumLog.e(TAG, "Malformed symbol found in plist!");
+      return false;
+    }
+
+    value.type = Value.Type.Symbol;
+    value.sval = tokenizer.sval;
+    return true;
+  }
+
+  /**
+   * Parses in a coordinate sub-sexpr.
+   *
+   * Coordinate sexprs are of the dotted cons cell form <code>(0 . 0)</code>.
+   *
+   * @param tokenizer The {@link StreamTokenizer} to read tokens from.
+   * @param value A {@link Value} to store the newly parsed coordinate in. Will
+   *        be mutated.
+   * @return true if the coordinate could be parsed successfully, false
+   *         otherwise. value remains unchanged on failure.
+   */
+  private static boolean parseCoordinate(StreamTokenizer tokenizer, Value value)
+      throws IOException {
+    int token = tokenizer.nextToken();
+
+    if (token != StreamTokenizer.TT_NUMBER) {
+      GypsumLog.e(TAG, "Expected number in sub-sexpr!");
+      return false;
+    }
+
+    float x = (float) tokenizer.nval;
+    token = tokenizer.nextToken();
+
+    if (token != '.') {
+      GypsumLog.e(TAG, "Expected dotted sub-sexpr!");
+      return false;
+    }
+
+    token = tokenizer.nextToken();
+
+    if (token != StreamTokenizer.TT_NUMBER) {
+      GypsumLog.e(TAG, "Expected number in second half of sub-sexpr!");
+      return false;
+    }
+
+    float y = (float) tokenizer.nval;
+    token = tokenizer.nextToken();
+
+    if (token != ')') {
+      GypsumLog.e(TAG, "Expected end of sub-sexpr!");
+      return false;
+    }
+
+    value.type = Value.Type.Coordinate;
+    value.xcoord = x;
+    value.ycoord = y;
+    return true;
+  }
+}
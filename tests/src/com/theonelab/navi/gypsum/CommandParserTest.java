@@ -0,0 +1,712 @@
+package com.theonelab.navi.gypsum;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Checks {@link CommandParser} against {@link BaselineParser} and the stream
+ * handling around it. Runs on a plain JVM; see <code>make test</code>.
+ *
+ * The two parsers must agree on every form, except where the current one
+ * deliberately differs. Each {@link Difference} has its own rule for what the
+ * current parser must do instead, so a form is only let off when one of those
+ * rules accounts for exactly what happened.
+ */
+public final class CommandParserTest {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int FUZZ_FORMS = 200000;
+
+  private static int failures;
+
+  /** The ways the current parser deliberately differs from the baseline. */
+  private enum Difference {
+    /** A rejected form leaves params alone; the baseline kept what it had set. */
+    ATOMIC_PARAMS,
+
+    /** A malformed <code>:color</code> or <code>:bgcolor</code> string is rejected. */
+    REJECTED_COLOR,
+
+    /** Escaped quotes in strings are understood rather than miscounted. */
+    ESCAPED_QUOTE,
+
+    /** Parens inside strings don't count towards balancing the form. */
+    PAREN_IN_STRING,
+
+    /** Newlines between tokens are whitespace rather than ending the form. */
+    MULTI_LINE,
+  }
+
+  // Stand-ins the baseline is given in place of what it can't handle inside
+  // strings, swapped back in its results. Private use, so no escape makes them.
+  private static final char OPEN_PAREN_MARK = '\uE001';
+  private static final char CLOSE_PAREN_MARK = '\uE002';
+  private static final char QUOTE_MARK = '\uE003';
+
+  public static void main(String[] args) {
+    // Parse errors are expected by the hundred; only report test failures.
+    GypsumLog.setSink(new GypsumLog.Sink() {
+        @Override
+        public void println(int priority, String tag, String message) {
+        }
+      });
+
+    long seed = (args.length > 0) ? Long.parseLong(args[0]) : 0x6779707375L;
+
+    testKnownForms();
+    testDeliberateDifferences();
+    testFuzzedFormsMatchBaseline(seed);
+    testRejectedFormLeavesParams();
+    testRejectedStreamedFormLeavesParams();
+    testUnbalancedFormResyncs();
+    testOversizedFormIsSkippedWhole();
+    testBinarySwitchSkipsRestOfLine();
+    testCompressionSwitchSkipsRestOfLine();
+    testPipelinedSettingsWaitTheirTurn();
+
+    if (failures > 0) {
+      System.err.println(failures + " failure(s).");
+      System.exit(1);
+    }
+
+    System.out.println("CommandParserTest passed.");
+  }
+
+  private static void testKnownForms() {
+    String[] forms = {
+      "(line :start (10 . 20) :end (30.5 . -40) :color \"#ffffff\" :width 2)",
+      "(text :text \"Hello, world\" :pos (1 . 2) :font 'Sans-Serif :bold t :italic nil)",
+      "(box :start (0 . 0) :end (.5 . 1.) :filled T :bgcolor \"Red\")",
+      "(COMMIT)",
+      "(reset)",
+      "(scroll :dx -5 :dy 12345678901234567890)",
+      "( line :start ( 1 . 2 ) )",
+      "  (line)  ",
+      "(line :start (1 2))",
+      "(line :start (1 . 2)",
+      "line :start (1 . 2))",
+      "(line (box))",
+      "(line box)",
+      "(line 5)",
+      "()",
+      "(:start (1 . 2))",
+      "(line :color \"#ff0000\" :width 3",
+      "(line :a \"#zzz\" :color \"#zzz\")",
+      "(line :color \"#12345\")",
+      "(text :text \"été ☃\")",
+      "(text :text \"tab\\there\" :font \"back\\\\\")",
+    };
+
+    for (String form : forms) {
+      checkAgainstBaseline(form);
+    }
+  }
+
+  /**
+   * One hand-written form for each deliberate difference, pinning down what
+   * the baseline did and what the current parser does instead.
+   */
+  private static void testDeliberateDifferences() {
+    Map<String, Value> params = stickyParams();
+    check(BaselineParser.parse("(line :width 9 :end oops)", params) == null,
+        "baseline accepted a bad :end");
+    check(params.get("width").equals(new Value(9)), "baseline didn't keep :width 9");
+    checkDifference("(line :width 9 :end oops)", Difference.ATOMIC_PARAMS);
+
+    params = stickyParams();
+    check("line".equals(BaselineParser.parse("(line :color \"#zzz\")", params)),
+        "baseline rejected a bad :color");
+    check(params.get("color").equals(new Value("#zzz", false)), "baseline didn't store #zzz");
+    checkDifference("(line :color \"#zzz\")", Difference.REJECTED_COLOR);
+
+    checkDifference("(text :text \"5\\\" tall\")", Difference.ESCAPED_QUOTE);
+    checkDifference("(text :text \":-)\")", Difference.PAREN_IN_STRING);
+    checkDifference("(line :width 3\n      :start (1 . 2))", Difference.MULTI_LINE);
+
+    params = stickyParams();
+    check("text".equals(CommandParser.parse("(text :text \"5\\\" tall\")", params))
+        && params.get("text").equals(new Value("5\" tall", false)),
+        "escaped quote parsed to " + params.get("text"));
+  }
+
+  /**
+   * Feeds randomly built and mangled forms through both parsers, starting
+   * from the same sticky parameters each time, and checks that every
+   * deliberate difference turned up along the way.
+   */
+  private static void testFuzzedFormsMatchBaseline(long seed) {
+    Random random = new Random(seed);
+    EnumSet<Difference> seen = EnumSet.noneOf(Difference.class);
+
+    for (int i = 0; i < FUZZ_FORMS; i++) {
+      EnumSet<Difference> differences = checkAgainstBaseline(randomForm(random));
+
+      if (differences != null) {
+        seen.addAll(differences);
+      }
+    }
+
+    check(seen.equals(EnumSet.allOf(Difference.class)),
+        "fuzzer only produced forms showing " + seen);
+  }
+
+  /** A rejected form must not change any parameter, whatever preceded the error. */
+  private static void testRejectedFormLeavesParams() {
+    String[] forms = {
+      "(line :color \"#ff0000\" :width 3",
+      "(line :color \"#ff0000\" :width 3 :start (1 . x))",
+      "(line :a \"#zzz\" :color \"#zzz\")",
+      "(line :width 9 :color \"#zzz\")",
+      "(line :width 9 :end oops)",
+    };
+
+    for (String form : forms) {
+      Map<String, Value> params = stickyParams();
+
+      check(CommandParser.parse(form, params) == null, "accepted " + form);
+      check(params.equals(stickyParams()), form + " changed params to " + params);
+    }
+  }
+
+  /** The same goes for forms read off a stream by the parser's run loop. */
+  private static void testRejectedStreamedFormLeavesParams() {
+    final List<String> seen = new ArrayList<String>();
+
+    String input = "(line :color \"#00ff00\" :width 1)\n"
+        + "(line :color \"#ff0000\" :width 3 :start (1 . x))\n"
+        + "(line :width 7 :color \"#zzz\")\n"
+        + "(line :a \"#zzz\" :color \"#zzz\")\n"
+        + "(text)\n";
+
+    CommandParser parser = new CommandParser(
+        new ByteArrayInputStream(input.getBytes(UTF_8)),
+        new CommandParser.Listener() {
+          @Override
+          public void onParserStopped(CommandParser parser) {
+          }
+        });
+
+    Command record = new Command() {
+        @Override
+        public void execute(ParamTable params) {
+          seen.add(Integer.toHexString(getColorParam(SymbolTable.COLOR, params, 0))
+              + " " + getNumberParam(SymbolTable.WIDTH, params, 0));
+        }
+      };
+
+    parser.registerCommand("line", record);
+    parser.registerCommand("text", record);
+    parser.run();
+
+    List<String> expected = new ArrayList<String>();
+    expected.add("ff00ff00 1.0");
+    expected.add("ff00ff00 1.0");
+
+    check(seen.equals(expected), "run loop saw " + seen + ", expected " + expected);
+    check(!parser.getParams().containsKey("a"), "rejected form set :a");
+  }
+
+  /**
+   * A form missing its closing paren is given up on at the next line starting
+   * with one, rather than swallowing every command after it.
+   */
+  private static void testUnbalancedFormResyncs() {
+    String input = "(line :width 1\n"
+        + "(line :width 2)\n"
+        + "(line\n  :width 3)\n"
+        + "(line :width 4 :start (1 .\n"
+        + "(line :width 5)\n";
+
+    List<String> expected = new ArrayList<String>();
+    expected.add("2.0");
+    expected.add("3.0");
+    expected.add("5.0");
+
+    List<String> seen = runWidths(input.getBytes(UTF_8));
+    check(seen.equals(expected), "unbalanced forms saw " + seen + ", expected " + expected);
+  }
+
+  /**
+   * The lines of a form too large to buffer are skipped up to its closing
+   * paren, or the next line starting a form, rather than run as commands.
+   */
+  private static void testOversizedFormIsSkippedWhole() {
+    StringBuilder filler = new StringBuilder();
+
+    while (filler.length() <= SexprReader.MAX_FORM_SIZE) {
+      filler.append("xxxxxxxxxxxxxxxx");
+    }
+
+    String input = "(batch\n"
+        + "  (text :text \"" + filler + "\")\n"
+        + "  (line :width 9))\n"
+        + "(line :width 6)\n"
+        + "(line :text \"" + filler + "\n"
+        + "  (line :width 8)\n"
+        + "(line :width 7)\n";
+
+    List<String> expected = new ArrayList<String>();
+    expected.add("6.0");
+    expected.add("7.0");
+
+    List<String> seen = runWidths(input.getBytes(UTF_8));
+    check(seen.equals(expected), "oversized forms saw " + seen + ", expected " + expected);
+  }
+
+  /**
+   * Binary frames start after the newline ending the switching form's line,
+   * which mustn't be decoded as the start of a frame.
+   */
+  private static void testBinarySwitchSkipsRestOfLine() {
+    ByteArrayOutputStream input = new ByteArrayOutputStream();
+    int lineWireId = SymbolTable.WELL_KNOWN_COUNT;
+
+    write(input, "(line :width 1)\n(protocol :encoding 'binary)  \r\n");
+
+    input.write(GypsumProtocol.BINARY_DEFINE);
+    writeVarint(input, lineWireId);
+    writeVarint(input, 4);
+    write(input, "line");
+
+    writeVarint(input, lineWireId + 1);
+    writeVarint(input, 1);
+    writeVarint(input, SymbolTable.WIDTH);
+    input.write(GypsumProtocol.BINARY_NUMBER);
+    int bits = Float.floatToIntBits(5);
+
+    for (int i = 0; i < 4; i++) {
+      input.write(bits >>> (8 * i));
+    }
+
+    List<String> expected = new ArrayList<String>();
+    expected.add("1.0");
+    expected.add("5.0");
+
+    List<String> seen = runWidths(input.toByteArray());
+    check(seen.equals(expected), "binary switch saw " + seen + ", expected " + expected);
+  }
+
+  /**
+   * Likewise the DEFLATE stream starts after the newline, and plain text
+   * carries on straight after the DEFLATE stream ends.
+   */
+  private static void testCompressionSwitchSkipsRestOfLine() {
+    ByteArrayOutputStream input = new ByteArrayOutputStream();
+
+    write(input, "(line :width 1)\n(protocol :compression 'deflate)\t\r\n");
+
+    try {
+      DeflaterOutputStream deflating = new DeflaterOutputStream(input, new Deflater());
+      deflating.write("(line :width 4)\n".getBytes(UTF_8));
+      deflating.finish();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+
+    write(input, "(line :width 6)\n");
+
+    List<String> expected = new ArrayList<String>();
+    expected.add("1.0");
+    expected.add("4.0");
+    expected.add("6.0");
+
+    List<String> seen = runWidths(input.toByteArray());
+    check(seen.equals(expected), "compression switch saw " + seen + ", expected " + expected);
+  }
+
+  /**
+   * With a pipeline, <code>:ack</code> and <code>:coalesce</code> only apply to
+   * frames sent after them, however far behind the render thread is.
+   */
+  private static void testPipelinedSettingsWaitTheirTurn() {
+    final List<String> seen = new ArrayList<String>();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    String input = "(line :width 1)\n(commit)\n"
+        + "(protocol :ack t :coalesce t)\n"
+        + "(line :width 2)\n(commit)\n"
+        + "(line :width 3)\n(commit)\n"
+        + "(protocol :ack nil)\n"
+        + "(line :width 4)\n(commit)\n";
+
+    CommandParser parser = new CommandParser(
+        new ByteArrayInputStream(input.getBytes(UTF_8)), output,
+        new CommandParser.Listener() {
+          @Override
+          public void onParserStopped(CommandParser parser) {
+          }
+        });
+
+    parser.setPipeline(16, CommandRing.WaitStrategy.PARK);
+
+    parser.registerCommand("line", new Command() {
+        @Override
+        public boolean isDrawing() {
+          return true;
+        }
+
+        @Override
+        public void execute(ParamTable params) {
+          // Hold up the first frame until the parser has queued the rest.
+          if (seen.isEmpty()) {
+            try {
+              Thread.sleep(100);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+
+          seen.add(Float.toString(getNumberParam(SymbolTable.WIDTH, params, 0)));
+        }
+      });
+
+    parser.registerCommand("commit", new Command() {
+        @Override
+        public void execute(ParamTable params) {
+        }
+      });
+
+    parser.run();
+
+    List<String> acked = new ArrayList<String>();
+
+    for (String line : new String(output.toByteArray(), UTF_8).split("\n")) {
+      if (line.startsWith("(ack ")) {
+        acked.add(line.split(" ")[2]);
+      }
+    }
+
+    // Frames 2 and 3 were queued behind a later frame once coalescing was on,
+    // so are skipped; frame 4 is drawn, but after acks were turned off.
+    List<String> expectedSeen = new ArrayList<String>();
+    expectedSeen.add("1.0");
+    expectedSeen.add("4.0");
+
+    List<String> expectedAcked = new ArrayList<String>();
+    expectedAcked.add("2");
+    expectedAcked.add("3");
+
+    check(seen.equals(expectedSeen), "pipeline drew " + seen + ", expected " + expectedSeen);
+    check(acked.equals(expectedAcked), "pipeline acked " + acked + ", expected " + expectedAcked);
+    check(parser.getDroppedFrames() == 2,
+        "pipeline dropped " + parser.getDroppedFrames() + " frames, expected 2");
+  }
+
+  /** Runs a parser over input, returning the :width each line command saw. */
+  private static List<String> runWidths(byte[] input) {
+    final List<String> seen = new ArrayList<String>();
+
+    CommandParser parser = new CommandParser(
+        new ByteArrayInputStream(input),
+        new CommandParser.Listener() {
+          @Override
+          public void onParserStopped(CommandParser parser) {
+          }
+        });
+
+    parser.registerCommand("line", new Command() {
+        @Override
+        public void execute(ParamTable params) {
+          seen.add(Float.toString(getNumberParam(SymbolTable.WIDTH, params, 0)));
+        }
+      });
+
+    parser.run();
+    return seen;
+  }
+
+  private static void write(ByteArrayOutputStream out, String text) {
+    byte[] bytes = text.getBytes(UTF_8);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+
+    out.write(value);
+  }
+
+  /**
+   * Parses form with both parsers and checks they agree, or differ only as
+   * one of the deliberate differences says they should.
+   *
+   * @return the differences the form showed, or null if it failed the check.
+   */
+  private static EnumSet<Difference> checkAgainstBaseline(String form) {
+    ColorWatchingParams expectedParams = new ColorWatchingParams();
+    Map<String, Value> actualParams = stickyParams();
+
+    String expected = BaselineParser.parse(form, expectedParams);
+    String actual = CommandParser.parse(form, actualParams);
+
+    EnumSet<Difference> differences =
+        explain(form, expected, expectedParams, actual, actualParams);
+
+    check(differences != null,
+        "parse(" + escape(form) + ")\n    baseline: " + expected + " " + expectedParams
+        + "\n    current:  " + actual + " " + actualParams);
+
+    return differences;
+  }
+
+  /** Checks form shows exactly the given difference from the baseline. */
+  private static void checkDifference(String form, Difference difference) {
+    EnumSet<Difference> differences = checkAgainstBaseline(form);
+
+    check((differences == null) || differences.equals(EnumSet.of(difference)),
+        escape(form) + " showed " + differences + ", expected " + difference);
+  }
+
+  /**
+   * @return which deliberate differences account for the two parsers'
+   *         results, an empty set if they agree, or null if they differ in
+   *         some other way.
+   */
+  private static EnumSet<Difference> explain(String form,
+      String expected, ColorWatchingParams expectedParams,
+      String actual, Map<String, Value> actualParams) {
+    if (same(expected, actual) && expectedParams.equals(actualParams)) {
+      return EnumSet.noneOf(Difference.class);
+    }
+
+    if (actual == null) {
+      // Whatever else happened, a rejected form changes nothing.
+      if (!actualParams.equals(stickyParams())) {
+        return null;
+      }
+
+      if (expected == null) {
+        return EnumSet.of(Difference.ATOMIC_PARAMS);
+      }
+
+      return expectedParams.sawBadColor ? EnumSet.of(Difference.REJECTED_COLOR) : null;
+    }
+
+    if (expected != null) {
+      return null;
+    }
+
+    // The baseline turned down a form the current parser took. That's only
+    // right if it was put off by syntax the current parser now understands,
+    // so rewrite that syntax into something it does follow and ask again.
+    EnumSet<Difference> differences = EnumSet.noneOf(Difference.class);
+    String plain = withoutRelaxedSyntax(form, differences);
+
+    if (differences.isEmpty()) {
+      return null;
+    }
+
+    Map<String, Value> plainParams = stickyParams();
+    String plainCommand = BaselineParser.parse(plain, plainParams);
+    restoreMarks(plainParams);
+
+    if (!same(plainCommand, actual) || !plainParams.equals(actualParams)) {
+      return null;
+    }
+
+    return differences;
+  }
+
+  /**
+   * Rewrites the syntax only the current parser understands into an
+   * equivalent the baseline follows: newlines between tokens become spaces,
+   * and parens and escaped quotes inside strings become marks that
+   * {@link #restoreMarks} turns back afterwards. Strings are scanned as the
+   * current lexer scans them.
+   *
+   * @param differences gets the differences the form relied on added to it.
+   */
+  private static String withoutRelaxedSyntax(String form, EnumSet<Difference> differences) {
+    StringBuilder plain = new StringBuilder(form.length());
+    boolean inString = false;
+
+    for (int i = 0; i < form.length(); i++) {
+      char c = form.charAt(i);
+
+      if (!inString) {
+        if (c == '"') {
+          inString = true;
+        } else if (c == '\n') {
+          c = ' ';
+          differences.add(Difference.MULTI_LINE);
+        }
+
+        plain.append(c);
+        continue;
+      }
+
+      if ((c == '\\') && (i + 1 < form.length())) {
+        char escaped = form.charAt(++i);
+        plain.append(c);
+
+        if (escaped == '"') {
+          escaped = QUOTE_MARK;
+          differences.add(Difference.ESCAPED_QUOTE);
+        } else if ((escaped == '(') || (escaped == ')')) {
+          escaped = (escaped == '(') ? OPEN_PAREN_MARK : CLOSE_PAREN_MARK;
+          differences.add(Difference.PAREN_IN_STRING);
+        }
+
+        plain.append(escaped);
+        continue;
+      }
+
+      if ((c == '"') || (c == '\n') || (c == '\r')) {
+        inString = false;
+      } else if ((c == '(') || (c == ')')) {
+        c = (c == '(') ? OPEN_PAREN_MARK : CLOSE_PAREN_MARK;
+        differences.add(Difference.PAREN_IN_STRING);
+      }
+
+      plain.append(c);
+    }
+
+    return plain.toString();
+  }
+
+  private static void restoreMarks(Map<String, Value> params) {
+    for (Value value : params.values()) {
+      if (value.sval != null) {
+        value.sval = value.sval.replace(OPEN_PAREN_MARK, '(')
+            .replace(CLOSE_PAREN_MARK, ')')
+            .replace(QUOTE_MARK, '"');
+      }
+    }
+  }
+
+  /**
+   * Sticky parameters for the baseline that notice it storing a colour that
+   * doesn't parse, even if a later value in the same form replaces it.
+   */
+  private static final class ColorWatchingParams extends HashMap<String, Value> {
+    boolean sawBadColor;
+
+    ColorWatchingParams() {
+      super(stickyParams());
+    }
+
+    @Override
+    public Value put(String key, Value value) {
+      if ((key.equals("color") || key.equals("bgcolor"))
+          && (value.type == Value.Type.String)) {
+        try {
+          Colors.parse(value.sval);
+        } catch (IllegalArgumentException e) {
+          sawBadColor = true;
+        }
+      }
+
+      return super.put(key, value);
+    }
+  }
+
+  private static boolean same(String a, String b) {
+    return (a == null) ? (b == null) : a.equals(b);
+  }
+
+  /** @return a fresh copy of the parameters every form starts from. */
+  private static Map<String, Value> stickyParams() {
+    Map<String, Value> params = new HashMap<String, Value>();
+    params.put("color", new Value("#ffffff", false));
+    params.put("width", new Value(2));
+    params.put("start", new Value(0, 0));
+    return params;
+  }
+
+  // Pieces randomForm builds forms from.
+  private static final String[] COMMANDS = {
+    "line", "box", "text", "commit", "reset", "LINE", "Box", "scroll", "foo-bar", "batch",
+  };
+
+  private static final String[] KEYS = {
+    "start", "end", "color", "bgcolor", "width", "text", "font", "SIZE", "id", "x",
+  };
+
+  private static final String[] VALUES = {
+    "0", "1", "-3", "42", "1.5", ".5", "-.5", "1.", "-", "12345678901234567890",
+    "0.000001", "3.14159265358979", "\"hello\"", "\"#ff0000\"", "\"#80ff0000\"",
+    "\"#zzz\"", "\"#12345\"", "\"red\"", "\"Teal\"", "\"a b\"", "\"\"",
+    "\"é ü ☃\"", "\"tab\\tx\"", "\"back\\\\\"", "\"5\\\" tall\"", "\"\\\"\"",
+    "\":-)\"", "\"(\"", "\"a)b(\"", "\"\\(\"", "'foo", "'Bar-baz", "' x",
+    "'", "(1 . 2)", "(-1.5 . 3)", "( 1 . 2 )", "(1 2)", "(1 . x)", "(1 . 2", "()", "t",
+    "nil", "T", "NIL", "foo",
+  };
+
+  private static final String NOISE = "() :'\".-0123456789abcXYZ#\t_é\n\\";
+
+  private static String randomForm(Random random) {
+    return mangle(random, buildForm(random));
+  }
+
+  private static StringBuilder buildForm(Random random) {
+    StringBuilder form = new StringBuilder();
+
+    if (random.nextInt(20) == 0) {
+      form.append(random.nextBoolean() ? " " : "x");
+    }
+
+    form.append('(').append(pick(random, COMMANDS));
+
+    for (int i = random.nextInt(5); i > 0; i--) {
+      form.append(random.nextInt(8) == 0 ? "\n  :" : random.nextBoolean() ? " :" : " :  ");
+      form.append(pick(random, KEYS)).append(' ').append(pick(random, VALUES));
+    }
+
+    form.append(random.nextInt(10) == 0 ? " )" : ")");
+    return form;
+  }
+
+  /** Truncates, deletes from or inserts into about half of the forms. */
+  private static String mangle(Random random, StringBuilder form) {
+    for (int i = random.nextInt(4) - 1; i > 0; i--) {
+      int at = random.nextInt(form.length() + 1);
+
+      switch (random.nextInt(3)) {
+        case 0:
+          form.setLength(at);
+          break;
+        case 1:
+          if (at < form.length()) {
+            form.deleteCharAt(at);
+          }
+          break;
+        default:
+          form.insert(at, NOISE.charAt(random.nextInt(NOISE.length())));
+          break;
+      }
+    }
+
+    return form.toString();
+  }
+
+  private static String pick(Random random, String[] choices) {
+    return choices[random.nextInt(choices.length)];
+  }
+
+  private static String escape(String text) {
+    return text.replace("\t", "\\t").replace("\n", "\\n");
+  }
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      failures++;
+
+      if (failures <= 20) {
+        System.err.println("FAIL: " + message);
+      }
+    }
+  }
+}